@@ -0,0 +1,130 @@
+/**
+ *  ArchiveFileSystems: A java class to keep the zip and jar archives of a file tree walk open as file systems.
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Opens zip and jar archives through the zip file system provider, so the
+ * walk can list them like directories.  The provider reads the central
+ * directory at the end of the archive when it is opened, and lists and
+ * stats the entries from it, so nothing is extracted and the data of the
+ * entries is never read by the walk.
+ *
+ * At most so many archives are held open.  An archive walked again while
+ * still open is reused, and opening one more closes the one used least
+ * recently.  The paths into a closed archive are only good for their names,
+ * the walker opens the archive again before reading one of its directories.
+ * It is not thread safe.
+ */
+class ArchiveFileSystems {
+    static final int DEFAULT_MAX_OPEN = 16;
+    private static final String[] SUFFIXES = {".zip", ".jar"};
+    private final int maxOpen;
+    private long opened = 0;
+    private long reused = 0;
+    private long closed = 0;
+    // The open archives, the one used least recently first.
+    private final LinkedHashMap<Path, FileSystem> open;
+
+    ArchiveFileSystems(int maxOpen) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("The maximum open archives must be at least one:  " + maxOpen);
+        }
+        this.maxOpen = maxOpen;
+        this.open = new LinkedHashMap<Path, FileSystem>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileSystem> eldest) {
+                if (size() <= ArchiveFileSystems.this.maxOpen) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                closed++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Whether the name of the file is that of an archive.
+     */
+    static boolean isArchive(Path file) {
+        Path name = file.getFileName();
+        if (name == null) {
+            return false;
+        }
+        String lower = name.toString().toLowerCase(Locale.ROOT);
+        for (String suffix : SUFFIXES) {
+            if (lower.endsWith(suffix) && (lower.length() > suffix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The path as it is printed, a path in an archive following the path of
+     * the archive and a '!', like a jar URL.
+     */
+    static String name(Path path) {
+        FileSystem fileSystem = path.getFileSystem();
+        if ((fileSystem == FileSystems.getDefault()) || !"jar".equals(fileSystem.provider().getScheme())) {
+            return path.toString();
+        }
+        // The zip file system is named after the path of its archive.
+        return fileSystem.toString() + "!" + path.toString();
+    }
+
+    /**
+     * Returns the file system of the archive, opening it if it is not open.
+     */
+    FileSystem open(Path archive) throws IOException {
+        FileSystem fileSystem = open.get(archive);
+        if ((fileSystem != null) && fileSystem.isOpen()) {
+            reused++;
+            return fileSystem;
+        }
+        fileSystem = FileSystems.newFileSystem(archive, (ClassLoader)null);
+        opened++;
+        open.put(archive, fileSystem);
+        return fileSystem;
+    }
+
+    /**
+     * Returns the root directory of the archive, opening it if it is not
+     * open.
+     */
+    Path root(Path archive) throws IOException {
+        return open(archive).getRootDirectories().iterator().next();
+    }
+
+    /**
+     * Closes every archive still open.
+     */
+    void close() {
+        for (FileSystem fileSystem : open.values()) {
+            closeQuietly(fileSystem);
+        }
+        open.clear();
+    }
+
+    private static void closeQuietly(FileSystem fileSystem) {
+        try {
+            fileSystem.close();
+        } catch (IOException ignore) { }
+    }
+
+    @Override
+    public String toString() {
+        return "Archives:  " + opened + " opened, " + reused + " reused, " + closed + " closed to keep "
+            + maxOpen + " open";
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ *  AttributeCache: A java class to cache file attributes between walks.
+ *
+ */
+
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of file attributes keyed by path, filled from the stats of
+ * the walker holding it.  A single walk reads each entry once, so the cache
+ * only saves stats when the walker, or the cache, is reused for another
+ * walk of the same tree by code walking it again and again.
+ * Entries never expire: the cached attributes are those of the last stat,
+ * and a caller which knows a file has changed must {@code invalidate} it,
+ * or the walks are given its old size, time and type.
+ *
+ * The entries are spread over several stripes, each an access ordered map
+ * with a lock of its own, so the threads of a parallel walk seldom wait for
+ * one another.  A stripe evicts its least recently used entry once it holds
+ * its share of the maximum, so the cache never holds more than the maximum
+ * but may evict an entry before the one used least recently of all.
+ */
+class AttributeCache {
+    /**
+     * The number of entries kept when no size is given.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 100000;
+    private static final int MAX_STRIPES = 16;
+
+    private final int maxEntries;
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The entries whose paths hash to one stripe, the least recently used
+     * first, guarded by the stripe itself.
+     */
+    private class Stripe extends LinkedHashMap<Path, BasicFileAttributes> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, BasicFileAttributes> eldest) {
+            if (size() > maxEntries) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    AttributeCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    AttributeCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one entry:  " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        // A power of two stripes, each holding at least one entry.
+        int count = Integer.highestOneBit(Math.min(MAX_STRIPES, maxEntries));
+        this.stripes = new Stripe[count];
+        for (int x = 0; x < count; x++) {
+            stripes[x] = new Stripe(maxEntries / count + ((x < maxEntries % count) ? 1 : 0));
+        }
+    }
+
+    private Stripe stripe(Path file) {
+        int hash = file.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Returns the cached attributes of the file, or {@code null} if they
+     * are not cached.
+     */
+    BasicFileAttributes get(Path file) {
+        Stripe stripe = stripe(file);
+        BasicFileAttributes attrs;
+        synchronized (stripe) {
+            attrs = stripe.get(file);
+        }
+        if (attrs == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return attrs;
+    }
+
+    /**
+     * Caches the attributes of the file.
+     */
+    void put(Path file, BasicFileAttributes attrs) {
+        Stripe stripe = stripe(file);
+        synchronized (stripe) {
+            stripe.put(file, attrs);
+        }
+    }
+
+    /**
+     * Drops the cached attributes of the file, for when it is known to have
+     * changed.
+     */
+    void invalidate(Path file) {
+        Stripe stripe = stripe(file);
+        synchronized (stripe) {
+            stripe.remove(file);
+        }
+    }
+
+    /**
+     * The number of entries cached.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Attribute Cache:  " + size() + " entries, " + hits() + " hits, "
+            + misses() + " misses, " + evictions() + " evictions";
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ *  ChannelSink: A java class to write the events of a file tree walk to a channel.
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+
+/**
+ * A sink for producing file inventories at millions of lines a second.  Each
+ * event is encoded straight into one large reusable byte buffer, which is
+ * written to the channel only when it is full and when the walk is over.
+ * The lines are either in the form the walker prints or just the paths, and
+ * may be separated by NUL characters like the output of find -print0.
+ */
+class ChannelSink implements EventSink {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Room for the longest encoding of a single character.
+    private static final int MAX_CHAR_BYTES = 4;
+    private static final byte[] ENTRY = "Entry:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINK = "Link:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] START_DIRECTORY = "Start Directory Entry:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DIRECTORY = "Directory Entry:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOOP = "Loop:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ADDED = "Added:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REMOVED = "Removed:  ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHANGED = "Changed:  ".getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final boolean pathsOnly;
+    private final byte separator;
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int count = 0;
+    // Only needed when file names are not encoded in UTF-8.
+    private final CharsetEncoder encoder;
+
+    /**
+     * Writes a line per event in the form the walker prints.
+     */
+    ChannelSink(WritableByteChannel channel) {
+        this(channel, false, '\n');
+    }
+
+    /**
+     * Writes either the walker's lines or only the paths, ended by the
+     * separator.
+     */
+    ChannelSink(WritableByteChannel channel, boolean pathsOnly, char separator) {
+        this.channel = channel;
+        this.pathsOnly = pathsOnly;
+        this.separator = (byte)separator;
+        Charset charset = fileNameCharset();
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            this.encoder = null;
+        } else {
+            this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    /**
+     * The character set the platform encodes file names in.
+     */
+    private static Charset fileNameCharset() {
+        String name = System.getProperty("sun.jnu.encoding");
+        try {
+            if (name != null) {
+                return Charset.forName(name);
+            }
+        } catch (IllegalArgumentException ignore) { }
+        return Charset.defaultCharset();
+    }
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        if (!pathsOnly) {
+            switch (ev.type()) {
+                case ENTRY :
+                    put(ENTRY);
+                    break;
+                case LINK :
+                    put(LINK);
+                    break;
+                case START_DIRECTORY :
+                    put(START_DIRECTORY);
+                    break;
+                case DIRECTORY :
+                    put(DIRECTORY);
+                    break;
+                case LOOP :
+                    put(LOOP);
+                    break;
+                case ADDED :
+                    put(ADDED);
+                    break;
+                case REMOVED :
+                    put(REMOVED);
+                    break;
+                case CHANGED :
+                    put(CHANGED);
+                    break;
+                default:
+            }
+        }
+        put(ev.file());
+        if (count == BUFFER_SIZE) {
+            flush();
+        }
+        bytes[count++] = separator;
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Copies the bytes into the buffer.
+     */
+    private void put(byte[] data) {
+        if (BUFFER_SIZE - count < data.length) {
+            flush();
+        }
+        System.arraycopy(data, 0, bytes, count, data.length);
+        count += data.length;
+    }
+
+    /**
+     * Encodes the path into the buffer a character at a time, so no byte
+     * array is made for it.
+     */
+    private void put(Path file) {
+        String name = ArchiveFileSystems.name(file);
+        if (encoder != null) {
+            putEncoded(name);
+            return;
+        }
+        int length = name.length();
+        for (int x = 0; x < length; x++) {
+            if (BUFFER_SIZE - count < MAX_CHAR_BYTES) {
+                flush();
+            }
+            char c = name.charAt(x);
+            if (c < 0x80) {
+                bytes[count++] = (byte)c;
+            } else if (c < 0x800) {
+                bytes[count++] = (byte)(0xc0 | (c >> 6));
+                bytes[count++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && (x + 1 < length)
+                && Character.isLowSurrogate(name.charAt(x + 1))) {
+                int code = Character.toCodePoint(c, name.charAt(++x));
+                bytes[count++] = (byte)(0xf0 | (code >> 18));
+                bytes[count++] = (byte)(0x80 | ((code >> 12) & 0x3f));
+                bytes[count++] = (byte)(0x80 | ((code >> 6) & 0x3f));
+                bytes[count++] = (byte)(0x80 | (code & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate cannot be encoded.
+                bytes[count++] = (byte)'?';
+            } else {
+                bytes[count++] = (byte)(0xe0 | (c >> 12));
+                bytes[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                bytes[count++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Encodes the name with the platform's encoder, straight into the buffer.
+     */
+    private void putEncoded(String name) {
+        CharBuffer chars = CharBuffer.wrap(name);
+        encoder.reset();
+        CoderResult result;
+        do {
+            buffer.limit(BUFFER_SIZE).position(count);
+            result = encoder.encode(chars, buffer, true);
+            count = buffer.position();
+            if (result.isOverflow()) {
+                flush();
+            }
+        } while (result.isOverflow());
+        do {
+            buffer.limit(BUFFER_SIZE).position(count);
+            result = encoder.flush(buffer);
+            count = buffer.position();
+            if (result.isOverflow()) {
+                flush();
+            }
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Writes the buffer to the channel.
+     */
+    @Override
+    public void flush() {
+        buffer.limit(count).position(0);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        count = 0;
+    }
+
+    @Override
+    public void finish() {
+        if (count > 0) {
+            flush();
+        }
+    }
+}
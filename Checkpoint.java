@@ -0,0 +1,262 @@
+/**
+ *  Checkpoint: A java class to let a file tree walk carry on after it has died.
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A journal of the directories a walk has finished, from which the
+ * directories still waiting to be walked can be found again.  Every
+ * directory has a number: the start of the walk is zero, and the sub
+ * directories a directory pushes are numbered in turn after the last.  When
+ * a directory has been read a record of its number and the names of its sub
+ * directories is appended, so the file only grows at its end and a record
+ * costs about the length of the names.  The records are held in memory
+ * and only written to the file when the walker syncs it every few seconds,
+ * after writing out its own output, so no record reaches the disk before
+ * the entries of its directory do.  A record cut short by a crash is
+ * dropped when the walk is resumed.
+ *
+ * A resumed walk starts from the directories pushed but not finished.  A
+ * directory being read when the walk died, or finished since the last sync,
+ * is read again, but no finished subtree is.
+ */
+class Checkpoint implements Closeable {
+    private static final int MAGIC = 0x5743484b;
+    private static final int VERSION = 1;
+    private static final long DEFAULT_SYNC_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Path file;
+    private final FileChannel channel;
+    // The records written since the last sync.
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream out;
+    private final List<Pending> frontier;
+    private long nextId;
+    private long syncNanos = DEFAULT_SYNC_NANOS;
+    private long lastSync = System.nanoTime();
+
+    /**
+     * A directory waiting to be walked.
+     */
+    static class Pending {
+        final long id;
+        final Path dir;
+        final int depth;
+
+        Pending(long id, Path dir, int depth) {
+            this.id = id;
+            this.dir = dir;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Counts the bytes read, so the end of the last whole record is known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private Checkpoint(Path file, FileChannel channel, List<Pending> frontier, long nextId) {
+        this.file = file;
+        this.channel = channel;
+        this.out = new DataOutputStream(records);
+        this.frontier = frontier;
+        this.nextId = nextId;
+    }
+
+    /**
+     * Starts the journal of a new walk from the given directory, replacing
+     * any journal already in the file.
+     */
+    static Checkpoint start(Path file, Path root) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        List<Pending> frontier = new ArrayList<Pending>();
+        frontier.add(new Pending(0, root, 0));
+        Checkpoint checkpoint = new Checkpoint(file, channel, frontier, 1);
+        checkpoint.out.writeInt(MAGIC);
+        checkpoint.out.writeInt(VERSION);
+        checkpoint.out.writeUTF(root.toString());
+        checkpoint.sync();
+        return checkpoint;
+    }
+
+    /**
+     * Reads the journal of a walk from the given directory which did not
+     * finish, to carry it on.
+     */
+    static Checkpoint resume(Path file, Path root) throws IOException {
+        Map<Long, Pending> pending = new LinkedHashMap<Long, Pending>();
+        long nextId = 1;
+        long end;
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try (DataInputStream in = new DataInputStream(counter)) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Not a checkpoint:  " + file.toString());
+            }
+            if (!in.readUTF().equals(root.toString())) {
+                throw new IOException("The checkpoint " + file.toString() + " is not of a walk of " + root.toString());
+            }
+            pending.put(0L, new Pending(0, root, 0));
+            end = counter.count;
+            try {
+                while (true) {
+                    long id = in.readLong();
+                    int count = in.readInt();
+                    Path[] children = new Path[count];
+                    Pending done = pending.get(id);
+                    if (done == null) {
+                        throw new IOException("The checkpoint " + file.toString() + " is damaged.");
+                    }
+                    Path dir = done.dir;
+                    for (int x = 0; x < count; x++) {
+                        boolean named = in.readBoolean();
+                        String name = in.readUTF();
+                        children[x] = named ? dir.resolve(name) : root.getFileSystem().getPath(name);
+                    }
+                    // Only a whole record counts.
+                    end = counter.count;
+                    pending.remove(id);
+                    for (Path child : children) {
+                        pending.put(nextId, new Pending(nextId, child, done.depth + 1));
+                        nextId++;
+                    }
+                }
+            } catch (EOFException eof) {
+                // The end of the journal, or of the last record written.
+            }
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+        return new Checkpoint(file, channel, new ArrayList<Pending>(pending.values()), nextId);
+    }
+
+    /**
+     * Sets how often the journal is synced to the disk.
+     */
+    void setSyncInterval(long time, TimeUnit unit) {
+        this.syncNanos = unit.toNanos(time);
+    }
+
+    /**
+     * The directories waiting to be walked when the journal was opened, in
+     * the order they were pushed.
+     */
+    List<Pending> frontier() {
+        return frontier;
+    }
+
+    /**
+     * Records that a directory has been read and pushed the given sub
+     * directories, returning the number of the first of them; the others
+     * follow in order.
+     */
+    long completed(long id, Path dir, List<Path> children) throws IOException {
+        long first = nextId;
+        out.writeLong(id);
+        out.writeInt(children.size());
+        for (Path child : children) {
+            boolean named = dir.equals(child.getParent());
+            out.writeBoolean(named);
+            out.writeUTF(named ? child.getFileName().toString() : child.toString());
+        }
+        nextId += children.size();
+        return first;
+    }
+
+    /**
+     * Whether it is time to sync the journal.  The output of the walk must be
+     * written out first, or a resumed walk could skip directories whose
+     * entries were lost.
+     */
+    boolean syncDue() {
+        return (System.nanoTime() - lastSync >= syncNanos);
+    }
+
+    /**
+     * Writes the records held since the last sync to the file and forces
+     * them to the disk.
+     */
+    void sync() throws IOException {
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        records.reset();
+        channel.force(false);
+        lastSync = System.nanoTime();
+    }
+
+    /**
+     * Syncs and closes the journal, keeping it to resume from.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes and deletes the journal of a walk which has finished.
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+}
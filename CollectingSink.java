@@ -0,0 +1,30 @@
+/**
+ *  CollectingSink: A java class to keep the events of a file tree walk.
+ *
+ */
+
+
+import java.nio.file.FileVisitResult;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sink that keeps every event it receives, in the order received, for use
+ * of the walk results in code.
+ */
+class CollectingSink implements EventSink {
+    private final List<FileTreeWalker.Event> events = new ArrayList<FileTreeWalker.Event>();
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        events.add(ev);
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * The events received.
+     */
+    List<FileTreeWalker.Event> events() {
+        return events;
+    }
+}
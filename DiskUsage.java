@@ -0,0 +1,244 @@
+/**
+ *  DiskUsage: A java class to add up the space used under each directory of a file tree walk.
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A sink adding up the size, allocated size and number of the files under
+ * each directory as the walk goes, like du.  Only the directories from the
+ * start of the walk down to the one being read are held, each as a few
+ * longs: when the walk leaves a directory its totals are added to its
+ * parent's and it is dropped, after being kept if it is among the largest
+ * or at the depth totals are wanted for.
+ *
+ * The walk leaves a directory when an entry outside it arrives, so the
+ * events must come in the order of a walk on one thread: from
+ * {@code walk} on a single thread or with {@code setOrdered}, or from
+ * {@code stream}, calling {@code finish} at the end.  A breadth first walk
+ * comes back to a directory after leaving it, so its totals would be
+ * split.  Links should not be followed; entries reached outside the start
+ * of the walk are not counted.  A names only walk leaves the sizes of most
+ * files unread.
+ *
+ * Java does not give the blocks allocated to a file, so the allocated size
+ * is the size rounded up to the block size of the file system.
+ */
+class DiskUsage implements EventSink {
+    private final int topCount;
+    private final int totalsDepth;
+    private final long blockSize;
+    private final ArrayDeque<Node> open = new ArrayDeque<Node>();
+    private final PriorityQueue<Total> largest = new PriorityQueue<Total>(11, Total.BY_SIZE);
+    private final List<Total> atDepth = new ArrayList<Total>();
+    private Path root = null;
+    private Total total = null;
+
+    /**
+     * The totals of a directory the walk has left.
+     */
+    static class Total {
+        static final Comparator<Total> BY_SIZE = new Comparator<Total>() {
+            @Override
+            public int compare(Total one, Total two) {
+                int bySize = Long.compare(one.size, two.size);
+                return (bySize != 0) ? bySize : two.dir.compareTo(one.dir);
+            }
+        };
+        final Path dir;
+        final int depth;
+        final long size;
+        final long allocated;
+        final long files;
+
+        Total(Path dir, int depth, long size, long allocated, long files) {
+            this.dir = dir;
+            this.depth = depth;
+            this.size = size;
+            this.allocated = allocated;
+            this.files = files;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%15d %15d %10d  %s", size, allocated, files, dir.toString());
+        }
+    }
+
+    /**
+     * A directory the walk is in.
+     */
+    private static class Node {
+        final Path dir;
+        final int depth;
+        long size = 0;
+        long allocated = 0;
+        long files = 0;
+
+        Node(Path dir, int depth) {
+            this.dir = dir;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Keeps the {@code topCount} largest directories and the totals of the
+     * directories {@code totalsDepth} below the start of the walk.
+     */
+    DiskUsage(int topCount, int totalsDepth, long blockSize) {
+        if ((topCount < 0) || (totalsDepth < 0) || (blockSize < 1)) {
+            throw new IllegalArgumentException("Invalid disk usage options.");
+        }
+        this.topCount = topCount;
+        this.totalsDepth = totalsDepth;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        if ((ev.type() == FileTreeWalker.EventType.START_DIRECTORY) || (ev.type() == FileTreeWalker.EventType.REMOVED)) {
+            return FileVisitResult.CONTINUE;
+        }
+        Path file = ev.file();
+        if (root == null) {
+            root = (ev.type() == FileTreeWalker.EventType.DIRECTORY) ? file : file.getParent();
+        }
+        Path parent = file.getParent();
+        if ((parent == null) || !parent.startsWith(root)) {
+            return FileVisitResult.CONTINUE;
+        }
+        while (!open.isEmpty() && !parent.startsWith(open.peek().dir)) {
+            leave();
+        }
+        enter(parent);
+        if ((ev.type() == FileTreeWalker.EventType.DIRECTORY) || (ev.type() == FileTreeWalker.EventType.LOOP)) {
+            return FileVisitResult.CONTINUE;
+        }
+        Node listing = open.peek();
+        BasicFileAttributes attrs = ev.attributes();
+        listing.files++;
+        if (attrs != null) {
+            listing.size += attrs.size();
+            listing.allocated += ((attrs.size() + blockSize - 1) / blockSize) * blockSize;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Opens the directories from the one the walk is in down to the given
+     * one, which holds the entry being added.
+     */
+    private void enter(Path dir) {
+        Path top = open.isEmpty() ? null : open.peek().dir;
+        if (dir.equals(top)) {
+            return;
+        }
+        ArrayDeque<Path> levels = new ArrayDeque<Path>();
+        for (Path level = dir; (level != null) && !level.equals(top); level = level.getParent()) {
+            levels.push(level);
+            if (level.equals(root)) {
+                break;
+            }
+        }
+        int rootCount = root.getNameCount();
+        while (!levels.isEmpty()) {
+            Path level = levels.pop();
+            open.push(new Node(level, level.getNameCount() - rootCount));
+        }
+    }
+
+    /**
+     * Leaves the directory the walk is in, adding its totals to its parent.
+     */
+    private void leave() {
+        Node node = open.pop();
+        Total done = new Total(node.dir, node.depth, node.size, node.allocated, node.files);
+        if (topCount > 0) {
+            largest.add(done);
+            if (largest.size() > topCount) {
+                largest.poll();
+            }
+        }
+        if (node.depth == totalsDepth) {
+            atDepth.add(done);
+        }
+        Node parent = open.peek();
+        if (parent != null) {
+            parent.size += node.size;
+            parent.allocated += node.allocated;
+            parent.files += node.files;
+        } else {
+            total = done;
+        }
+    }
+
+    /**
+     * Leaves every directory still open.
+     */
+    @Override
+    public void finish() {
+        while (!open.isEmpty()) {
+            leave();
+        }
+    }
+
+    /**
+     * The totals of the start of the walk, or {@code null} before the walk
+     * is over.
+     */
+    Total total() {
+        return total;
+    }
+
+    /**
+     * The largest directories, largest first.
+     */
+    List<Total> largest() {
+        List<Total> list = new ArrayList<Total>(largest);
+        Collections.sort(list, Collections.reverseOrder(Total.BY_SIZE));
+        return list;
+    }
+
+    /**
+     * The totals of the directories at the chosen depth, largest first.
+     */
+    List<Total> atDepth() {
+        List<Total> list = new ArrayList<Total>(atDepth);
+        Collections.sort(list, Collections.reverseOrder(Total.BY_SIZE));
+        return list;
+    }
+
+    /**
+     * Prints the totals, the largest directories and the directories at the
+     * chosen depth.
+     */
+    void print(PrintStream out) {
+        String header = String.format("%15s %15s %10s  %s", "Size", "Allocated", "Files", "Directory");
+        out.println("Disk Usage:");
+        out.println(header);
+        if (total != null) {
+            out.println(total.toString());
+        }
+        out.println("Largest " + topCount + " directories:");
+        out.println(header);
+        for (Total dir : largest()) {
+            out.println(dir.toString());
+        }
+        out.println("Directories at depth " + totalsDepth + ":");
+        out.println(header);
+        for (Total dir : atDepth()) {
+            out.println(dir.toString());
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ *  DuplicateFinder: A java class to find the files of a file tree walk with the same contents.
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sink collecting the regular files of the walk, which then finds those
+ * with the same contents in three stages, each reading only the files the
+ * one before left as candidates:
+ * 1. The files are grouped by the size the walk read, which costs no I/O.
+ *    The groups are chains through the arrays of files, their heads kept in
+ *    a {@code LongIntMap} by size, so a file costs a few array slots.
+ * 2. Within each group of a size the files are grouped again by a hash of
+ *    their first and last {@code PARTIAL_BYTES}.
+ * 3. The files still sharing a group are hashed in full, unless the
+ *    partial hash already covered the whole file.
+ * Files with the same file key are hard links to one file and are reported
+ * once, the rest of its links are counted but not taken for duplicates.
+ * Files below the minimum size, empty ones by default, are ignored.
+ *
+ * The files are only read by {@code find}, once the walk is over.  The
+ * files need their attributes, so a names only walk finds nothing.
+ */
+class DuplicateFinder implements EventSink {
+    static final int PARTIAL_BYTES = 4 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private final long minSize;
+    private final LongIntMap lastOfSize = new LongIntMap();
+    private Path[] files = new Path[1024];
+    private long[] sizes = new long[1024];
+    private Object[] keys = new Object[1024];
+    // The file before each one of the same size, or -1.
+    private int[] previousOfSize = new int[1024];
+    private int count = 0;
+    private long totalBytes = 0;
+    private long bytesRead = 0;
+    private long hardLinks = 0;
+    private long errors = 0;
+    private List<Group> duplicates = null;
+    private PrintStream messages = System.out;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final MessageDigest digest;
+
+    /**
+     * Files with the same contents.
+     */
+    static class Group {
+        static final Comparator<Group> BY_FIRST_PATH = new Comparator<Group>() {
+            @Override
+            public int compare(Group one, Group two) {
+                return one.files.get(0).compareTo(two.files.get(0));
+            }
+        };
+        final long size;
+        final List<Path> files;
+
+        Group(long size, List<Path> files) {
+            this.size = size;
+            this.files = files;
+        }
+    }
+
+    DuplicateFinder(long minSize) {
+        if (minSize < 1) {
+            throw new IllegalArgumentException("The minimum size must be at least one:  " + minSize);
+        }
+        this.minSize = minSize;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Sets where the files which cannot be read are reported,
+     * {@code System.out} by default.
+     */
+    void setMessages(PrintStream messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        FileTreeWalker.EventType type = ev.type();
+        BasicFileAttributes attrs = ev.attributes();
+        if (((type == FileTreeWalker.EventType.ENTRY) || (type == FileTreeWalker.EventType.ADDED)
+            || (type == FileTreeWalker.EventType.CHANGED)) && (attrs != null) && attrs.isRegularFile()
+            && (attrs.size() >= minSize)) {
+            add(ev.file(), attrs.size(), attrs.fileKey());
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    private void add(Path file, long size, Object key) {
+        if (count == files.length) {
+            int capacity = count * 2;
+            files = Arrays.copyOf(files, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            previousOfSize = Arrays.copyOf(previousOfSize, capacity);
+        }
+        files[count] = file;
+        sizes[count] = size;
+        keys[count] = key;
+        previousOfSize[count] = lastOfSize.put(size, count);
+        totalBytes += size;
+        count++;
+    }
+
+    /**
+     * Finds the groups of files with the same contents, the largest files
+     * first and each group in the order of its paths.
+     */
+    List<Group> find() {
+        if (duplicates != null) {
+            return duplicates;
+        }
+        duplicates = new ArrayList<Group>();
+        long[] groupSizes = lastOfSize.keys();
+        Arrays.sort(groupSizes);
+        for (int g = groupSizes.length - 1; g >= 0; g--) {
+            int last = lastOfSize.get(groupSizes[g]);
+            if (previousOfSize[last] < 0) {
+                // The only file of its size.
+                continue;
+            }
+            List<Integer> candidates = distinctFiles(last);
+            if (candidates.size() < 2) {
+                continue;
+            }
+            boolean whole = (groupSizes[g] <= 2 * PARTIAL_BYTES);
+            List<Group> ofSize = new ArrayList<Group>();
+            for (List<Integer> partial : groupBy(candidates, true)) {
+                List<List<Integer>> same = whole ? Collections.singletonList(partial) : groupBy(partial, false);
+                for (List<Integer> group : same) {
+                    List<Path> paths = new ArrayList<Path>(group.size());
+                    for (int x : group) {
+                        paths.add(files[x]);
+                    }
+                    Collections.sort(paths);
+                    ofSize.add(new Group(groupSizes[g], paths));
+                }
+            }
+            Collections.sort(ofSize, Group.BY_FIRST_PATH);
+            duplicates.addAll(ofSize);
+        }
+        return duplicates;
+    }
+
+    /**
+     * The files of the size the chain ends with, dropping the other links to
+     * a file already among them.
+     */
+    private List<Integer> distinctFiles(int last) {
+        List<Integer> candidates = new ArrayList<Integer>();
+        FileKeySet seen = new FileKeySet();
+        for (int x = last; x >= 0; x = previousOfSize[x]) {
+            if ((keys[x] != null) && !seen.add(keys[x])) {
+                hardLinks++;
+                continue;
+            }
+            candidates.add(x);
+        }
+        return candidates;
+    }
+
+    /**
+     * Groups the files by their partial or full hash, keeping only the
+     * groups of two or more.  A file which cannot be read is left out.
+     */
+    private List<List<Integer>> groupBy(List<Integer> candidates, boolean partial) {
+        Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+        for (int x : candidates) {
+            String hash = hash(x, partial);
+            if (hash == null) {
+                continue;
+            }
+            List<Integer> group = groups.get(hash);
+            if (group == null) {
+                group = new ArrayList<Integer>(2);
+                groups.put(hash, group);
+            }
+            group.add(x);
+        }
+        List<List<Integer>> kept = new ArrayList<List<Integer>>();
+        for (List<Integer> group : groups.values()) {
+            if (group.size() > 1) {
+                kept.add(group);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Hashes the first and last {@code PARTIAL_BYTES} of a file, all of a
+     * file no larger than twice that, or the whole file.  Returns
+     * {@code null} if the file cannot be read.
+     */
+    private String hash(int x, boolean partial) {
+        digest.reset();
+        try (FileChannel channel = FileChannel.open(files[x], StandardOpenOption.READ)) {
+            long size = sizes[x];
+            if (partial && (size > 2 * PARTIAL_BYTES)) {
+                read(channel, 0, PARTIAL_BYTES);
+                read(channel, size - PARTIAL_BYTES, PARTIAL_BYTES);
+            } else {
+                read(channel, 0, Long.MAX_VALUE);
+            }
+        } catch (IOException ioe) {
+            errors++;
+            messages.println("File " + files[x].toString() + " cannot be read:  " + ioe.toString());
+            return null;
+        }
+        StringBuilder text = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            text.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Adds up to {@code length} bytes of the file from the given position to
+     * the digest.
+     */
+    private void read(FileChannel channel, long position, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int)remaining);
+            }
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+            remaining -= read;
+            bytesRead += read;
+        }
+    }
+
+    /**
+     * The number of bytes read so far by {@code find}.
+     */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * The total size of the files collected.
+     */
+    long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Prints the groups of duplicates and what finding them cost.
+     */
+    void print(PrintStream out) {
+        long copies = 0;
+        long wasted = 0;
+        for (Group group : find()) {
+            out.println("Duplicates:  " + group.files.size() + " files of " + group.size + " bytes");
+            for (Path file : group.files) {
+                out.println("\t" + file.toString());
+            }
+            copies += group.files.size() - 1;
+            wasted += (group.files.size() - 1) * group.size;
+        }
+        out.println(String.format("Duplicate Files:  %d groups, %d copies, %d bytes wasted, %d hard links ignored",
+            duplicates.size(), copies, wasted, hardLinks));
+        out.println(String.format("Read %d of %d bytes (%.2f%%) in %d files, %d errors", bytesRead, totalBytes,
+            (totalBytes == 0) ? 0.0 : 100.0 * bytesRead / totalBytes, count, errors));
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ *  EventSink: A java interface to receive the events of a file tree walk.
+ *
+ */
+
+
+import java.nio.file.FileVisitResult;
+
+/**
+ * Receives each event of a walk in place of the default printing.  The
+ * result returned decides how the walk goes on:
+ * 1. CONTINUE walks on as usual.
+ * 2. SKIP_SUBTREE on a directory event does not descend into the directory.
+ * 3. SKIP_SIBLINGS stops reading the directory the entry is in.
+ * 4. TERMINATE ends the walk.
+ * Events are delivered to the sink one at a time, even when the tree is
+ * walked on several threads.
+ */
+interface EventSink {
+    /**
+     * Receives a single event.
+     */
+    FileVisitResult accept(FileTreeWalker.Event ev);
+
+    /**
+     * Called when the walk needs the events received so far written out, as
+     * before it records a checkpoint.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Called when the walk is over, for a sink to flush its output.
+     */
+    default void finish() {
+    }
+
+    /**
+     * Called in place of {@code finish} when the walk did not complete,
+     * because it was ended early or failed, so a sink writing output which
+     * replaces that of an earlier walk can keep the earlier output.  By
+     * default the output is flushed as for a complete walk.
+     */
+    default void abort() {
+        finish();
+    }
+}
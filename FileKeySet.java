@@ -0,0 +1,71 @@
+/**
+ *  FileKeySet: A java class to remember the directories a walk has seen.
+ *
+ */
+
+
+/**
+ * A set of file keys, as returned by {@code BasicFileAttributes.fileKey()},
+ * used to find the directories a walk reaches more than once by following
+ * links.  The keys are held in a single open addressed array, so unlike a
+ * {@code HashSet} no object is allocated for each key added.  The set may be
+ * used by several threads.
+ */
+class FileKeySet {
+    private static final int INITIAL_CAPACITY = 64;
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Adds the key, returning {@code false} if it was already in the set.
+     */
+    synchronized boolean add(Object key) {
+        // Keep the table at most half full.
+        if (size * 2 >= keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int x = mix(key.hashCode()) & mask;
+        while (keys[x] != null) {
+            if (keys[x].equals(key)) {
+                return false;
+            }
+            x = (x + 1) & mask;
+        }
+        keys[x] = key;
+        size++;
+        return true;
+    }
+
+    synchronized void clear() {
+        keys = new Object[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Moves the keys to a table of the given size, a power of two.
+     */
+    private void resize(int capacity) {
+        Object[] old = keys;
+        keys = new Object[capacity];
+        int mask = capacity - 1;
+        for (Object key : old) {
+            if (key != null) {
+                int x = mix(key.hashCode()) & mask;
+                while (keys[x] != null) {
+                    x = (x + 1) & mask;
+                }
+                keys[x] = key;
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a hash code, as the keys of a file system often
+     * differ only in their low bits.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
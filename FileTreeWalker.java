@@ -9,20 +9,54 @@
 
 import java.nio.file.attribute.BasicFileAttributes;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.nio.file.LinkOption;
 import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
 import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import com.sun.management.UnixOperatingSystemMXBean;
 
 /**
  * A Class to walk a file tree.  This class will:
@@ -35,6 +69,21 @@ import java.io.File;
  * 2. Following links
  * 3. Disabling security exceptions
  * 4. Using a file attribute cache to speed analysis.
+ * 5. Walking the tree on several threads, optionally keeping the output order.
+ * 6. Walking the tree on virtual threads for high latency network file systems.
+ * 7. Sending the events to a sink which may skip parts of the tree or end the walk.
+ * 8. Walking against a snapshot of an earlier walk, reporting only what has changed.
+ * 9. Including and excluding entries by glob or regular expression.
+ * 10. Listing names only, without reading the attributes of most files.
+ * 11. Counting and timing the work of the walk.
+ * 12. Checkpointing the walk, so one which dies can be carried on.
+ * 13. Choosing the order the directories are walked in: on a stack, depth first, breadth first or by name.
+ * 14. Hashing the contents of the files into a manifest, through a {@code HashSink}.
+ * 15. Finding the files with the same contents, through a {@code DuplicateFinder}.
+ * 16. Keeping a snapshot up to date with the changes to a few entries, for a {@code TreeWatcher}.
+ * 17. Holding the whole tree in memory as columns of primitives, through a {@code TreeModel}.
+ * 18. Walking into zip and jar archives as if they were directories.
+ * When following links each directory is walked only once, so loops of links end.
  */  
 
 class FileTreeWalker{
@@ -42,11 +91,41 @@ class FileTreeWalker{
     private LinkOption[] linkOptions;
     private final int maxDepth;
     private final ArrayDeque<DirectoryNode> stack = new ArrayDeque();
-    public final ArrayDeque<Path>files = new ArrayDeque();
     private boolean canUseCached = false;
     private boolean ignoreSecurityException = false;
-    private Path begin;
-    private int depth;
+    private final LongAdder statCount = new LongAdder();
+    private int parallelism = 1;
+    private int fanOut = 0;
+    private Semaphore openStreams = null;
+    private AttributeCache attributeCache = null;
+    private EventSink sink = null;
+    private PrintStream messages = System.out;
+    private volatile boolean terminated = false;
+    private final FileKeySet walkedDirectories = new FileKeySet();
+    // The real paths of the directories links have been resolved in.
+    private final ConcurrentHashMap<Path, Path> realDirectories = new ConcurrentHashMap<Path, Path>();
+    private static final int MAX_REAL_DIRECTORIES = 100000;
+    // Like the ELOOP limit of the operating system.
+    private static final int MAX_LINK_HOPS = 40;
+    private boolean ordered = false;
+    private Snapshot snapshot = null;
+    private PathFilter filter = null;
+    private boolean namesOnly = false;
+    private WalkMetrics metrics = null;
+    private Checkpoint checkpoint = null;
+    private Traversal traversal = Traversal.STACK;
+    static final int DEFAULT_QUEUE_LIMIT = 100000;
+    private int queueLimit = DEFAULT_QUEUE_LIMIT;
+    private Path spillDirectory = null;
+    // Whether a removed subtree is dropped from the snapshot at once, when updating it.
+    private boolean pruning = false;
+    // The directories waiting in a breadth first walk, instead of the stack.
+    private SpillQueue<DirectoryNode> queue = null;
+    private ArchiveFileSystems archives = null;
+    // Whether the file system on each device keeps the link count of its directories.
+    private final ConcurrentHashMap<Object, Boolean> countsLinks = new ConcurrentHashMap<Object, Boolean>();
+    private static final Set<String> LINK_COUNTING = new HashSet<String>(Arrays.asList(
+        "ext2", "ext3", "ext4", "xfs", "tmpfs", "jfs", "reiserfs"));
 
     /**
       * A helper class to contain a file directory.
@@ -54,13 +133,33 @@ class FileTreeWalker{
     private static class DirectoryNode {
         private final Path dir;
         private final Object key;
-        private final DirectoryStream<Path> stream;
-        private final Iterator<Path> iterator;
+        private final BasicFileAttributes attrs;
+        private DirectoryStream<Path> stream;
+        private final int depth;
+        private Iterator<Path> iterator;
         private boolean skipped;
+        // The number of the directory in the checkpoint.
+        private long id = -1;
+        // The archive the directory is in, or is the root of when it is the archive itself.
+        private final Path archive;
+
+        DirectoryNode(Path dir, BasicFileAttributes attrs, int depth) {
+            this(dir, attrs, depth, null);
+        }
 
-        DirectoryNode(Path dir, Object key, DirectoryStream<Path> stream) {
+        DirectoryNode(Path dir, BasicFileAttributes attrs, int depth, Path archive) {
             this.dir = dir;
-            this.key = key;
+            this.key = (attrs == null) ? null : attrs.fileKey();
+            this.attrs = attrs;
+            this.depth = depth;
+            this.archive = archive;
+        }
+
+        /**
+         * The stream is only opened when the node is popped, so the nodes
+         * waiting on the stack hold no file descriptors.
+         */
+        void open(DirectoryStream<Path> stream) {
             this.stream = stream;
             this.iterator = stream.iterator();
         }
@@ -73,6 +172,22 @@ class FileTreeWalker{
             return key;
         }
 
+        /**
+         * The attributes read when the directory was visited.
+         */
+        BasicFileAttributes attributes() {
+            return attrs;
+        }
+
+        /**
+         * The depth of the directory, the start of the walk is at depth zero.
+         * Directories are only descended into while they are shallower than
+         * the maximum depth.
+         */
+        int depth() {
+            return depth;
+        }
+
         DirectoryStream<Path> stream() {
             return stream;
         }
@@ -88,6 +203,23 @@ class FileTreeWalker{
         boolean skipped() {
             return skipped;
         }
+
+        long id() {
+            return id;
+        }
+
+        /**
+         * The archive file the directory is in, or {@code null} if it is
+         * not in one.  Until the archive is opened the directory of its
+         * root is the archive file itself.
+         */
+        Path archive() {
+            return archive;
+        }
+
+        void setId(long id) {
+            this.id = id;
+        }
     }
 
     /**
@@ -109,7 +241,59 @@ class FileTreeWalker{
         /**
          * A link
          */
-        LINK;
+        LINK,
+        /**
+         * A directory already walked, reached again by following a link,
+         * for instance a link to one of its own parents.  It is not walked
+         * again.
+         */
+        LOOP,
+        /**
+         * An entry added since the snapshot was taken.
+         */
+        ADDED,
+        /**
+         * An entry removed since the snapshot was taken, it has no
+         * attributes.
+         */
+        REMOVED,
+        /**
+         * An entry whose type, size or modification time has changed since
+         * the snapshot was taken.
+         */
+        CHANGED;
+    }
+
+    /**
+     * The orders the walk on the calling thread can take through the tree.
+     */
+    static enum Traversal {
+        /**
+         * Each directory is read in full and its sub directories pushed onto
+         * a stack, so the last found is walked next.  The memory used grows
+         * with the width of the directories.
+         */
+        STACK,
+        /**
+         * Each sub directory is descended into as soon as it is found, the
+         * rest of its parent being read when it is done.  Only the
+         * directories from the start down to the current one are held, each
+         * with its stream open, so the memory used is bounded by the depth
+         * of the tree.
+         */
+        DEPTH_FIRST,
+        /**
+         * The directories are walked level by level in the order they were
+         * found, so the shallow entries come first.  The directories waiting
+         * are queued in memory up to the queue limit and the rest on disk.
+         */
+        BREADTH_FIRST,
+        /**
+         * As {@code STACK}, but the entries of each directory are sorted by
+         * name and the sub directories walked in that order, so the output
+         * is the same from one walk to the next.
+         */
+        SORTED;
     }
 
     /**
@@ -167,6 +351,258 @@ class FileTreeWalker{
         this.linkOptions =  new LinkOption[1];
         this.linkOptions[0]= LinkOption.NOFOLLOW_LINKS;
         this.maxDepth = maxDepth;
+        if (canUseCached) {
+            this.attributeCache = new AttributeCache();
+        }
+    }
+
+    /**
+     * Sends the events of the walk to the sink instead of printing them.
+     * {@code null} (the default) prints them.
+     */
+    void setSink(EventSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Returns the sink, or {@code null} if the events are printed.
+     */
+    EventSink sink() {
+        return sink;
+    }
+
+    /**
+     * Sets where the messages about the progress and problems of the walk
+     * are printed, {@code System.out} by default.
+     */
+    void setMessages(PrintStream messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Print a message about the walk.
+     */
+    private void report(String message) {
+        messages.println(message);
+    }
+
+    /**
+     * Sets the cache the attributes read are kept in, so several walkers can
+     * share one.  The cache is only used when the walker can use cached
+     * attributes.
+     */
+    void setAttributeCache(AttributeCache attributeCache) {
+        this.attributeCache = attributeCache;
+    }
+
+    /**
+     * Returns the attribute cache, or {@code null} if there is none.
+     */
+    AttributeCache attributeCache() {
+        return attributeCache;
+    }
+
+    /**
+     * Sets the number of threads used to walk the tree.  The default of one
+     * walks the tree on the calling thread.
+     */
+    void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least one:  " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Walks the tree on virtual threads, one for every directory listing and
+     * every stat, with at most {@code fanOut} of them reading the file system
+     * at once.  Zero (the default) disables the virtual thread walk, which
+     * otherwise takes precedence over the parallelism.
+     */
+    void setFanOut(int fanOut) {
+        if (fanOut < 0) {
+            throw new IllegalArgumentException("The fan out cannot be negative:  " + fanOut);
+        }
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Limits the number of directory streams the walk holds open at once,
+     * which matters when several threads are reading directories.  Zero
+     * (the default) leaves the number unlimited, except in a virtual thread
+     * walk, which holds at most one stream per permitted thread and no
+     * more than half the file descriptors the process has free.
+     */
+    void setMaxOpenStreams(int maxOpenStreams) {
+        if (maxOpenStreams < 0) {
+            throw new IllegalArgumentException("The maximum open streams cannot be negative:  " + maxOpenStreams);
+        }
+        this.openStreams = (maxOpenStreams == 0) ? null : new Semaphore(maxOpenStreams);
+    }
+
+    /**
+     * When walking on several threads, emit the events in the same order as
+     * the single threaded walk does.  Otherwise each directory is output as
+     * soon as it has been read.
+     *
+     * The events of a directory read ahead of the output are kept until
+     * every directory before it has been output, and nothing limits how far
+     * ahead the threads read.  One slow directory early in the walk may
+     * leave the events of most of the rest of the tree in memory, about as
+     * much as a {@code CollectingSink} would hold.  The limit is not
+     * enforced by blocking the readers, as the directory the output waits
+     * for may be queued behind them.
+     */
+    void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Walks the tree against the snapshot of an earlier walk, reporting only
+     * the entries added, removed and changed since, and then brings the
+     * snapshot up to date.  An empty snapshot reports every entry as added.
+     * The walk is on the calling thread, whatever the parallelism.
+     * {@code null} (the default) walks the whole tree.
+     */
+    void setSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Sets the rules choosing the entries walked and reported.  Excluded
+     * entries are dropped as their directory is read, before they are
+     * stat'ed or opened.  {@code null} (the default) walks every entry.
+     */
+    void setFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Walks without reading the attributes of the entries which can only be
+     * files.  On file systems which count the links to a directory, a
+     * directory with n links holds n - 2 sub directories, so once that many
+     * have been found the rest of its entries are not stat'ed and are
+     * reported as entries with no attributes; in the leaf directories, where
+     * most files are, nothing is.  Other entries are stat'ed as usual.  Only
+     * used when links are not followed, as a link to a directory is not
+     * counted, and never by a walk against a snapshot.  The link count costs
+     * each directory listed a second stat, so the walk makes one stat per
+     * entry with attributes and one more per directory.
+     */
+    void setNamesOnly(boolean namesOnly) {
+        this.namesOnly = namesOnly;
+    }
+
+    /**
+     * Counts and times the work of the walk in the given metrics.
+     * {@code null} (the default) counts nothing beyond the stat count.
+     */
+    void setMetrics(WalkMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the metrics of the walk, or {@code null} if there are none.
+     */
+    WalkMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Records the progress of the walk in the checkpoint, and starts from the
+     * directories it holds as waiting.  The walk is on the calling thread,
+     * whatever the parallelism.  When the walk is over the checkpoint is
+     * deleted, or kept to resume from if the walk failed.  {@code null} (the
+     * default) keeps no checkpoint.
+     */
+    void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sets the order the walk on the calling thread takes through the tree,
+     * {@code STACK} by default.  The walks on several threads, against a
+     * snapshot and from a checkpoint keep their own order, though a
+     * checkpointed walk sorts the entries when {@code SORTED} is chosen.
+     */
+    void setTraversal(Traversal traversal) {
+        this.traversal = Objects.requireNonNull(traversal);
+    }
+
+    /**
+     * Limits the number of directories a breadth first walk queues in
+     * memory, the rest are written to a file.  A directory read back from
+     * the file is stat'ed again.
+     */
+    void setQueueLimit(int queueLimit) {
+        if (queueLimit < 1) {
+            throw new IllegalArgumentException("The queue limit must be at least one:  " + queueLimit);
+        }
+        this.queueLimit = queueLimit;
+    }
+
+    /**
+     * Sets the directory a breadth first walk writes its queue to,
+     * {@code null} (the default) for the temporary directory.
+     */
+    void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Walks into the zip and jar archives found as if they were directories,
+     * holding at most {@code maxOpenArchives} of them open at once.  The
+     * root of an archive is one level below the directory holding it, so
+     * the maximum depth applies inside the archive, and a sink which skips
+     * the subtree of the archive file keeps the walk out of it.  Archives
+     * within archives are reported as files.  Only the walks on the calling
+     * thread which are not checkpointed walk into archives.  The archives
+     * are closed when the walk is over, so the paths in them are only good
+     * while the sink has the event.  Zero (the default) reports archives as
+     * files.
+     */
+    void setArchives(int maxOpenArchives) {
+        if (maxOpenArchives < 0) {
+            throw new IllegalArgumentException("The maximum open archives cannot be negative:  " + maxOpenArchives);
+        }
+        this.archives = (maxOpenArchives == 0) ? null : new ArchiveFileSystems(maxOpenArchives);
+    }
+
+    /**
+     * Returns the archives walked into, or {@code null} if archives are
+     * reported as files.
+     */
+    ArchiveFileSystems archives() {
+        return archives;
+    }
+
+    /**
+     * Returns the number of times the attributes of a file have been read
+     * from the file system.  Each entry walked is read exactly once, or not
+     * at all when its attributes are already in the attribute cache.  A
+     * names only walk reads only the entries it reports with attributes,
+     * and each directory a second time for its link count.
+     */
+    long statCount() {
+        return statCount.sum();
+    }
+
+    /**
+     * The time a stat starts, when the metrics time it.
+     */
+    private long statStart() {
+        return (metrics == null) ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Counts a stat started at the given time, and times it in the metrics,
+     * whether it succeeded or not, so both count every stat made.
+     */
+    private void statDone(long start) {
+        statCount.increment();
+        if (metrics != null) {
+            metrics.stat(System.nanoTime() - start);
+        }
     }
 
     /**
@@ -188,14 +624,25 @@ class FileTreeWalker{
                 return cached;
             }
         }
+        // Otherwise the attributes may have been read before.
+        if (canUseCached && (attributeCache != null)) {
+            BasicFileAttributes cached = attributeCache.get(file);
+            if (cached != null && (!followLinks || !cached.isSymbolicLink())) {
+                return cached;
+            }
+        }
 
         // Attempt to get attributes of file. If this fails and we are following
         // links then a link target might not exist so get attributes of link
         BasicFileAttributes attrs;
+        long start = statStart();
         try {
             attrs = Files.readAttributes(file, BasicFileAttributes.class, linkOptions);
-        } catch (IOException ioe) {
-            throw ioe;
+        } finally {
+            statDone(start);
+        }
+        if (canUseCached && (attributeCache != null)) {
+            attributeCache.put(file, attrs);
         }
         return attrs;
     }
@@ -213,299 +660,1718 @@ class FileTreeWalker{
      * for the file can be used or not.
      */
     private Event visit(Path entry) {
-        // Need the file attributes
+        // Need the file attributes, this is the only stat of the entry.
         BasicFileAttributes attrs = null;
-        Event ev = null;
+        if (metrics != null) {
+            metrics.entry();
+        }
         try {
             attrs = getAttributes(entry, canUseCached);
         } catch (IOException ioe) {
-           // We have a link.
-            if (attrs.isSymbolicLink()) {
-               // Not following links, return it as an entry.
-               if (!followLinks) {
-                 return new Event(EventType.LINK, entry, ioe);
-               }else {
-                  // Get the absolute canonical location that the link points to.
-                  File testfile = new File(entry.toString());
-                  if (!testfile.canRead()){
-                     return null;
-                  } 
-                  System.out.println("Link Value:  " + entry.toString());
-                  try {
-                     String dirname = testfile.getCanonicalPath();
-                     FileSystem fSystem = FileSystems.getDefault();
-                     entry = fSystem.getPath(dirname);
-                     System.out.println("Path Value:  " + entry.toString());
-                     return(visit(entry));
-                  } catch (IOException exc) {
-                       // Return the entry as an entry.
-                       return new Event(EventType.ENTRY, entry, exc);
-                  }
-               }
-            }
-            if (attrs.isRegularFile()) {
-               return new Event(EventType.ENTRY, entry, ioe);
-            } else if (attrs.isDirectory()) {
-               return new Event(EventType.DIRECTORY, entry, ioe);
+            // The entry went away or cannot be read.
+            if (metrics != null) {
+                metrics.error(ioe);
             }
+            return null;
         } catch (SecurityException se) {
+            if (metrics != null) {
+                metrics.error(se);
+            }
             if (ignoreSecurityException){
                return null;
             } else {
                throw se;
             }
         }
-         IOException ioe = new IOException("\n\n\tDummy Exception.\n\n");
          // We have a link.
          if (attrs.isSymbolicLink()) {
             // Not following links, return it as an entry.
             if (!followLinks) {
-               return new Event(EventType.LINK, entry, ioe);
+               return new Event(EventType.LINK, entry, attrs);
             }else {
-               // Get the absolute canonical location that the link points to.
-               File testfile = new File(entry.toString());
-               if (!testfile.canRead()){
-                  return null;
-               } 
-               System.out.println("Link Value:  " + entry.toString());
-               try {
-                     String dirname = testfile.getCanonicalPath();
-                     FileSystem fSystem = FileSystems.getDefault();
-                     entry = fSystem.getPath(dirname);
-                     System.out.println("Path Value:  " + entry.toString());
-                     return(visit(entry));
-               } catch (IOException exc) {
-                    // Return the entry as an entry.
-                    return new Event(EventType.ENTRY, entry, exc);
-               }
+               return visitLink(entry, attrs);
             }
          }
+         return typed(entry, attrs);
+    }
+
+    /**
+     * Returns the event for a file that is not a link.
+     */
+    private Event typed(Path entry, BasicFileAttributes attrs) {
          if (attrs.isRegularFile()) {
-            return new Event(EventType.ENTRY, entry, ioe);
+            return new Event(EventType.ENTRY, entry, attrs);
          } else if (attrs.isDirectory()) {
-            return new Event(EventType.DIRECTORY, entry, ioe);
+            if (!firstVisit(entry, attrs)) {
+               return new Event(EventType.LOOP, entry, attrs);
+            }
+            return new Event(EventType.DIRECTORY, entry, attrs);
          }
          return null;
     }
 
-
     /**
-     * Start walking from the given file.
+     * Visits the final target of a link, which is reported under its real
+     * path.  The target is found by reading the link and resolving it against
+     * the real path of the directory holding it, which is looked up once per
+     * walk, so a link costs a readlink and a stat of its target.  Only when
+     * that fails is the target stat'ed through the link.  A link whose target
+     * does not exist is returned as a link.
      */
-    void walk(Path entry) throws SecurityException{
-        System.out.println("Currently listing root directory:  " + entry.toString());
-        DirectoryStream<Path> stream = null;
-        BasicFileAttributes attrs = null;
-        begin = entry;
-        Event ev = null;
-        Path tmp = null;
+    private Event visitLink(Path link, BasicFileAttributes linkAttrs) {
+        Path file = link;
         try {
-            attrs = getAttributes(entry, canUseCached);
+            for (int hops = 0; hops < MAX_LINK_HOPS; hops++) {
+                file = resolveLink(file);
+                BasicFileAttributes attrs = getAttributes(file, canUseCached);
+                if (!attrs.isSymbolicLink()) {
+                    return typed(file, attrs);
+                }
+            }
+            report("Link:  " + link.toString() + " has too many levels of links.");
+            return new Event(EventType.LINK, link, linkAttrs);
+        } catch (NoSuchFileException nsfe) {
+            // A dangling link.
+            return new Event(EventType.LINK, link, linkAttrs);
         } catch (IOException ioe) {
-            ev = new Event(EventType.START_DIRECTORY, entry, ioe);
+            // Let the file system follow the link instead.
         } catch (SecurityException se) {
             if (ignoreSecurityException){
-                return;
+               return null;
             } else {
-               throw(se);
+               throw se;
             }
         }
-
+        long start = statStart();
         try {
-            stream = Files.newDirectoryStream(entry);
+            return typed(link, Files.readAttributes(link, BasicFileAttributes.class));
         } catch (IOException ioe) {
-            ev = new Event(EventType.DIRECTORY, entry, attrs, ioe);
-        } catch (SecurityException se) {
-            if (ignoreSecurityException){
-                return;
-            } else {
-                throw(se);
-            }
+            return new Event(EventType.LINK, link, linkAttrs);
+        } finally {
+            statDone(start);
         }
-        // push The starting directory node to the stack.
-        DirectoryNode dirNode = new DirectoryNode(entry, attrs.fileKey(), stream);
-        stack.push(dirNode);
-        boolean computing = true;
-        while(computing) {
-            computing = next();
-        };
     }
 
     /**
-     * Iterates through the directory and prints all the values.
-     * Pushes all directories onto the stack.
+     * Returns the path a link points to, with every directory in it real.
+     * The final name may itself be a link.
      */
-    boolean next() {
-        // Entry is a directory.
-        Event ev = null;
-        BasicFileAttributes attrs = null;
-        Path entry = begin;
-        DirectoryNode dirNode = pop();
-        entry = dirNode.directory();
-        try {
-            attrs = getAttributes(entry, canUseCached);
-        } catch (IOException ioe) {
-            ev = new Event(EventType.DIRECTORY, entry, ioe);
-        } catch (SecurityException se) {
-            if (ignoreSecurityException){
-                return true;
-            } else {
-               throw(se);
-            }
+    private Path resolveLink(Path link) throws IOException {
+        Path parent = link.getParent();
+        if (parent == null) {
+            parent = link.toAbsolutePath().getParent();
         }
-         if (dirNode == null) {
-            return false;      // stack is empty, we are done
-         }
-         if (ev == null) {
-            IOException ioe = new IOException("\nDummy IOException.\n");
-            ev = new Event(EventType.DIRECTORY, entry, attrs, null);
+        Path target = parent.resolve(Files.readSymbolicLink(link));
+        Path name = target.getFileName();
+        if ((name == null) || name.toString().equals(".") || name.toString().equals("..")) {
+            return realDirectory(target);
         }
-         readData(ev);
-         // Read all the directory values.
-         readDirectory(dirNode);
-         Path tmpPath = null;
-         // Print all the directory values.
-         if (files.size() > 0){
-            do {
-                 tmpPath = files.pop();
-                 ev = visit(tmpPath);
-                 if (ev == null) {
-                     System.out.println("Entry:  " + entry.toString() + " failed to resolve to a type.");
-                     tmpPath = files.pop();
-                     continue;
-                 }
-                 readData(ev);
-           }while(files.size() > 0);
-       }
-       // Check to see if there is more.
-       return (stack.size() > 0);
+        return realDirectory(target.getParent()).resolve(name);
     }
+
     /**
-     * Output the data.
+     * Returns the real path of a directory, remembered for the rest of the
+     * walk.
      */
-     void readData(Event ev) {
-          Path tmp = null;
-          switch (ev.type()) {
-              case ENTRY :
-                  tmp = ev.file();
-                  System.out.println("Entry:  " + tmp.toString());
-                  break;
-              case LINK :
-                  tmp = ev.file();
-                  System.out.println("Link:  " + tmp.toString());
-                  break;
-              case START_DIRECTORY :
-                  tmp = ev.file();
-                  System.out.println("Start Directory Entry:  " + tmp.toString());
-                  break;
-              case DIRECTORY :
-                  tmp = ev.file();
-                  System.out.println("Directory Entry:  " + tmp.toString());
-                  break;
-              default:
+    private Path realDirectory(Path dir) throws IOException {
+        Path real = realDirectories.get(dir);
+        if (real == null) {
+            real = dir.toRealPath();
+            if (realDirectories.size() >= MAX_REAL_DIRECTORIES) {
+                realDirectories.clear();
             }
+            realDirectories.put(dir, real);
+        }
+        return real;
     }
-     
+
     /**
-     * Pops the directory node that is the current top of the stack safely.
+     * Forgets what the previous walk learned about the tree.
      */
-    DirectoryNode pop() {
-        if (!stack.isEmpty()) {
-            DirectoryNode node = stack.pop();
-            return node;
+    private void startWalk() {
+        walkedDirectories.clear();
+        realDirectories.clear();
+    }
+
+    /**
+     * Records that the walk has reached the directory, returning
+     * {@code false} if it had been reached before.  Only links can lead the
+     * walk to a directory twice, so nothing is recorded unless links are
+     * followed.  In a concurrent walk which of the paths to a directory is
+     * walked depends on the timing of the threads.
+     */
+    private boolean firstVisit(Path dir, BasicFileAttributes attrs) {
+        if (!followLinks) {
+            return true;
         }
-        return null;
+        Object key = attrs.fileKey();
+        if (key == null) {
+            // The file system has no keys, the closest is the real path.
+            try {
+                key = dir.toRealPath();
+            } catch (IOException ioe) {
+                key = dir.toAbsolutePath().normalize();
+            }
+        }
+        return walkedDirectories.add(key);
     }
-   
-   /**
-    * Get the depth of a path.
-    */
-   int getDepth(Path entry){
-       File tmpFile = new File(entry.toString());
-       Character seper = tmpFile.separatorChar;
-       String sep = "";
-       if (seper == '\\') {
-         sep = "\\\\";
-       } else {
-         sep = seper.toString();
-       }
-       String entryVal = entry.toString();
-       String beginVal = begin.toString();
-       String tmpVal = "";
-       int retVal = 0;
-       int length = beginVal.length();
-       String finalChar = beginVal.substring(length - 1, length);
-       if (finalChar.compareTo(sep) != 0)
-       {
-         length++;
-       }
-       int size = entryVal.length();
-       if ( size < length){
-           return 0;
-       }
-       tmpVal = entryVal.substring(length, size);
-       CharSequence test = sep.subSequence(0, 1);
-       if (tmpVal.contains(test)) {
-         String tmpArray[] = tmpVal.split(sep);
-         retVal = tmpArray.length;
-       }
-       return(retVal);
-   }
-   
-   /**
-    * Read all the elements of a directory.
-    */
-   void readDirectory(DirectoryNode dirNode) {
-        DirectoryStream<Path>reader = dirNode.stream();
-        Iterator<Path>dirData = dirNode.iterator();
-        Event ev = null;
-        EventType dirtype = null;
+
+
+    /**
+     * Returns the number of sub directories of a directory from its link
+     * count, or -1 when the file system does not keep the count.  The count
+     * costs a second stat of a directory just stat'ed, which the operating
+     * system answers from memory.
+     */
+    private long subdirectories(Path dir) {
+        try {
+            Map<String, Object> unix;
+            long start = statStart();
+            try {
+                unix = Files.readAttributes(dir, "unix:nlink,dev", linkOptions);
+            } finally {
+                statDone(start);
+            }
+            Object dev = unix.get("dev");
+            Boolean counts = countsLinks.get(dev);
+            if (counts == null) {
+                counts = LINK_COUNTING.contains(Files.getFileStore(dir).type());
+                countsLinks.put(dev, counts);
+            }
+            int links = ((Number)unix.get("nlink")).intValue();
+            return (counts && (links >= 2)) ? (links - 2) : -1;
+        } catch (IOException ioe) {
+            return -1;
+        } catch (UnsupportedOperationException uoe) {
+            // There is no unix view.
+            return -1;
+        } catch (IllegalArgumentException iae) {
+            return -1;
+        }
+    }
+
+    /**
+     * Visits the entries of one directory for the names only walk, stat'ing
+     * them only while there may be sub directories left among them.
+     */
+    private class LeafCount {
+        private long remaining;
+
+        LeafCount(Path dir) {
+            remaining = (namesOnly && !followLinks && (snapshot == null)) ? subdirectories(dir) : -1;
+        }
+
+        /**
+         * Whether none of the entries are directories.
+         */
+        boolean leaf() {
+            return (remaining == 0);
+        }
+
+        Event visit(Path entry) {
+            if (remaining == 0) {
+                if (metrics != null) {
+                    metrics.entry();
+                }
+                return new Event(EventType.ENTRY, entry, (BasicFileAttributes)null);
+            }
+            Event ev = FileTreeWalker.this.visit(entry);
+            if ((remaining > 0) && (ev != null) && (ev.type() == EventType.DIRECTORY)) {
+                remaining--;
+            }
+            return ev;
+        }
+    }
+
+    /**
+     * Start walking from the given file.
+     */
+    void walk(Path entry) throws SecurityException{
+        terminated = false;
+        boolean finished = false;
+        try {
+            walkTree(entry);
+            finished = true;
+        } finally {
+            stack.clear();
+            if (queue != null) {
+                queue.close();
+                queue = null;
+            }
+            if (sink != null) {
+                if (finished && !terminated) {
+                    sink.finish();
+                } else {
+                    sink.abort();
+                }
+            }
+            if (archives != null) {
+                archives.close();
+            }
+            if (checkpoint != null) {
+                closeCheckpoint(finished);
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoint of a finished walk, or keeps it for a walk
+     * which failed.
+     */
+    private void closeCheckpoint(boolean finished) {
+        try {
+            if (finished) {
+                checkpoint.delete();
+            } else {
+                checkpoint.close();
+            }
+        } catch (IOException ioe) {
+            report("Checkpoint cannot be closed:  " + ioe.toString());
+        }
+    }
+
+    /**
+     * Walk the tree with the engine the options select.
+     */
+    private void walkTree(Path entry) throws SecurityException{
+        report("Currently listing root directory:  " + entry.toString());
         BasicFileAttributes attrs = null;
-        Path entry = null;
-        while(dirData.hasNext()) {
-              entry = dirData.next();
-              ev = visit(entry);
-              if (ev == null) {
-                  System.out.println("Entry:  " + entry.toString() + " failed to resolve to a type.");
-                  continue;
-              }
-              dirtype = ev.type();
-              int deep = getDepth(entry);
-              // Add everything to the directory listing.
-              files.add(entry);
-              // Seperate out directories for further processing.
-              if ((dirtype == EventType.DIRECTORY) && (deep < maxDepth)) {
-                 try {
-                     attrs = getAttributes(entry, canUseCached);
-                 } catch (IOException ioe) {
-                     ev = new Event(EventType.START_DIRECTORY, entry, ioe);
-                 } catch (SecurityException se) {
-                     if (ignoreSecurityException){
-                         continue;
-                     } else {
-                        throw(se);
-                     }
-                 }
-                 DirectoryStream<Path> stream = null;
-                 try {
-                     stream = Files.newDirectoryStream(entry);
-                 } catch (IOException ioe) {
-                     System.out.println("Directory " + entry.toString() + " cannot be resolved.");
-                     continue;
-                 } catch (SecurityException se) {
-                     if (ignoreSecurityException){
-                        continue;
+        Event ev = null;
+        Path tmp = null;
+        startWalk();
+        try {
+            attrs = getAttributes(entry, canUseCached);
+        } catch (IOException ioe) {
+            ev = new Event(EventType.START_DIRECTORY, entry, ioe);
+        } catch (SecurityException se) {
+            if (ignoreSecurityException){
+                return;
+            } else {
+               throw(se);
+            }
+        }
+        if (attrs != null) {
+            firstVisit(entry, attrs);
+        }
+        if (snapshot != null) {
+            if (attrs != null) {
+                walkIncremental(entry, attrs);
+            } else {
+                report("Directory " + entry.toString() + " cannot be resolved.");
+            }
+            return;
+        } else if (checkpoint != null) {
+            walkCheckpointed(attrs);
+            return;
+        } else if (fanOut > 0) {
+            Semaphore configured = openStreams;
+            if (configured == null) {
+                openStreams = new Semaphore(defaultMaxOpenStreams(fanOut));
+            }
+            try {
+                walkFanOut(entry, attrs);
+            } finally {
+                openStreams = configured;
+            }
+            return;
+        } else if (parallelism > 1) {
+            walkParallel(entry, attrs);
+            return;
+        }
+
+        if (traversal == Traversal.DEPTH_FIRST) {
+            walkDepthFirst(entry, attrs);
+            return;
+        } else if (traversal == Traversal.BREADTH_FIRST) {
+            Path spill = (spillDirectory != null) ? spillDirectory
+                : entry.getFileSystem().getPath(System.getProperty("java.io.tmpdir"));
+            queue = new SpillQueue<DirectoryNode>(queueLimit, spill, new DirectoryNodeCodec(entry));
+        }
+
+        // push The starting directory node to the stack.
+        DirectoryNode dirNode = new DirectoryNode(entry, attrs, 0);
+        push(dirNode);
+        boolean computing = true;
+        while(computing) {
+            computing = next();
+        };
+    }
+
+    /**
+     * Walk the tree depth first on the calling thread, descending into each
+     * sub directory as soon as it is found.  The events are those of the
+     * stack walk, only in another order.  A stream is held open for every
+     * directory from the start down to the current one; they are not
+     * counted against the maximum open streams, which would stop a walk
+     * deeper than the maximum.
+     */
+    private void walkDepthFirst(Path entry, BasicFileAttributes attrs) {
+        ArrayDeque<DirectoryNode> open = new ArrayDeque<DirectoryNode>();
+        // The leaf count of each open directory.
+        ArrayDeque<LeafCount> counts = new ArrayDeque<LeafCount>();
+        try {
+            enterDirectory(new DirectoryNode(entry, attrs, 0), open, counts);
+            while (!terminated && !open.isEmpty()) {
+                DirectoryNode dirNode = open.peek();
+                Path child = null;
+                try {
+                    if (dirNode.iterator().hasNext()) {
+                        child = dirNode.iterator().next();
+                    }
+                } catch (DirectoryIteratorException die) {
+                    if (metrics != null) {
+                        metrics.error(die.getCause());
+                    }
+                    report("Directory " + dirNode.directory().toString() + " cannot be resolved.");
+                }
+                if (child == null) {
+                    closeQuietly(open.pop().stream());
+                    counts.pop();
+                    continue;
+                }
+                Event ev = counts.peek().visit(child);
+                if (ev == null) {
+                    report("Entry:  " + child.toString() + " failed to resolve to a type.");
+                    continue;
+                }
+                FileVisitResult result = readData(ev);
+                if (result == FileVisitResult.TERMINATE) {
+                    terminated = true;
+                } else if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    closeQuietly(open.pop().stream());
+                    counts.pop();
+                } else if ((ev.type() == EventType.DIRECTORY) && (dirNode.depth() < maxDepth)
+                    && (result == FileVisitResult.CONTINUE)) {
+                    enterDirectory(new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1, dirNode.archive()),
+                        open, counts);
+                } else if (walksInto(dirNode, ev, result)) {
+                    enterDirectory(new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1, ev.file()),
+                        open, counts);
+                }
+            }
+        } finally {
+            while (!open.isEmpty()) {
+                closeQuietly(open.pop().stream());
+            }
+        }
+    }
+
+    /**
+     * Opens a directory for the depth first walk and reports it, making it
+     * the one being read unless the sink skips it.
+     */
+    private void enterDirectory(DirectoryNode dirNode, ArrayDeque<DirectoryNode> open, ArrayDeque<LeafCount> counts) {
+        dirNode = openArchive(dirNode);
+        if (dirNode == null) {
+            return;
+        }
+        DirectoryStream<Path> stream = newDirectoryStream(dirNode.directory());
+        if (stream == null) {
+            return;
+        }
+        dirNode.open(stream);
+        if (metrics != null) {
+            metrics.directory(dirNode.depth(), open.size());
+        }
+        // The attributes were read when the directory was visited.
+        FileVisitResult result = readData(new Event(EventType.DIRECTORY, dirNode.directory(), dirNode.attributes()));
+        if (result == FileVisitResult.TERMINATE) {
+            terminated = true;
+        }
+        if (result != FileVisitResult.CONTINUE) {
+            closeQuietly(stream);
+            return;
+        }
+        open.push(dirNode);
+        counts.push(new LeafCount(dirNode.directory()));
+    }
+
+    /**
+     * Writes the directories a breadth first walk queues on disk as their
+     * path and depth, and the archive they are in.  The attributes are read
+     * again when they come back, opening the archive again if need be.
+     */
+    private class DirectoryNodeCodec implements SpillQueue.Codec<DirectoryNode> {
+        private final Path start;
+
+        DirectoryNodeCodec(Path start) {
+            this.start = start;
+        }
+
+        @Override
+        public void write(DataOutputStream out, DirectoryNode dirNode) throws IOException {
+            Path archive = dirNode.archive();
+            out.writeUTF(dirNode.directory().toString());
+            out.writeInt(dirNode.depth());
+            out.writeUTF((archive == null) ? "" : archive.toString());
+            out.writeBoolean(dirNode.directory() == archive);
+        }
+
+        @Override
+        public DirectoryNode read(DataInputStream in) throws IOException {
+            Path dir = start.getFileSystem().getPath(in.readUTF());
+            int depth = in.readInt();
+            String archiveName = in.readUTF();
+            boolean archiveRoot = in.readBoolean();
+            Path archive = null;
+            if (!archiveName.isEmpty()) {
+                archive = start.getFileSystem().getPath(archiveName);
+                if (archiveRoot) {
+                    // Opened when it is popped.
+                    return new DirectoryNode(archive, null, depth, archive);
+                }
+                try {
+                    dir = archives.open(archive).getPath(dir.toString());
+                } catch (IOException ioe) {
+                    report("Archive " + archiveName + " cannot be opened:  " + ioe.toString());
+                    DirectoryNode lost = new DirectoryNode(archive, null, depth, archive);
+                    lost.skip();
+                    return lost;
+                }
+            }
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = getAttributes(dir, canUseCached);
+            } catch (IOException ioe) {
+                // Reported when it fails to open.
+                attrs = null;
+            }
+            return new DirectoryNode(dir, attrs, depth, archive);
+        }
+    }
+
+    /**
+     * Walk the tree against the snapshot.  A directory with the same file
+     * key and modification time as in the snapshot has had no entries added,
+     * removed or renamed, so it is not read again and its entries are not
+     * stat'ed; only its sub directories are, to look for changes further
+     * down.  A file rewritten in place leaves the modification time of its
+     * directory alone, so it is only reported once its directory changes.
+     * Every other directory is read and its entries compared with the
+     * snapshot by name, type, size and modification time.  The sink may end
+     * the walk or skip the subtree of a directory added, the other results
+     * are taken as continue.  The snapshot is only brought up to date when
+     * the walk is not ended early.
+     */
+    private void walkIncremental(Path entry, BasicFileAttributes attrs) {
+        Snapshot next = new Snapshot();
+        stack.push(new DirectoryNode(entry, attrs, 0));
+        while (!terminated && !stack.isEmpty()) {
+            DirectoryNode dirNode = stack.pop();
+            Snapshot.Directory previous = snapshot.get(dirNode.directory());
+            Snapshot.Directory current = null;
+            if ((previous != null) && previous.unchanged(dirNode.attributes())) {
+                current = descendUnchanged(dirNode, previous);
+            } else {
+                current = compareDirectory(dirNode, previous);
+            }
+            if (current != null) {
+                next.put(dirNode.directory(), current);
+            }
+        }
+        if (!terminated) {
+            snapshot.replaceWith(next);
+        }
+    }
+
+    /**
+     * Pushes the sub directories of a directory unchanged since the
+     * snapshot, returning what the snapshot should now hold for it.  This
+     * only differs from what it held when a followed link now leads
+     * somewhere else.
+     */
+    private Snapshot.Directory descendUnchanged(DirectoryNode dirNode, Snapshot.Directory previous) {
+        Snapshot.Directory current = previous;
+        for (int x = 0; (x < previous.size()) && !terminated; x++) {
+            byte type = previous.types[x];
+            if ((type != EventType.DIRECTORY.ordinal()) && (type != EventType.LOOP.ordinal())) {
+                continue;
+            }
+            Path entry = dirNode.directory().resolve(previous.names[x]);
+            if ((filter != null) && filter.excludes(entry)) {
+                continue;
+            }
+            Event ev = visit(entry);
+            if (ev == null) {
+                report("Entry:  " + entry.toString() + " failed to resolve to a type.");
+                continue;
+            }
+            if (ev.type() == EventType.DIRECTORY) {
+                if (dirNode.depth() < maxDepth) {
+                    stack.push(new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1));
+                }
+            } else if (ev.type() != EventType.LOOP) {
+                // The target of a link is no longer a directory.
+                if (current == previous) {
+                    current = previous.copy();
+                }
+                record(current, x, ev);
+                if (readData(new Event(EventType.CHANGED, ev.file(), ev.attributes())) == FileVisitResult.TERMINATE) {
+                    terminated = true;
+                } else {
+                    removeSubtree(entry);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Reads a directory changed since the snapshot, or not in it, reporting
+     * the entries added, removed and changed and pushing its sub
+     * directories.  Returns what the snapshot should now hold for it, or
+     * {@code null} if it cannot be read.
+     */
+    private Snapshot.Directory compareDirectory(DirectoryNode dirNode, Snapshot.Directory previous) {
+        Path dir = dirNode.directory();
+        DirectoryStream<Path> stream = openDirectory(dir);
+        if (stream == null) {
+            return null;
+        }
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        if (previous != null) {
+            for (int x = 0; x < previous.size(); x++) {
+                index.put(previous.names[x], x);
+            }
+        }
+        BitSet seen = new BitSet();
+        List<String> names = new ArrayList<String>();
+        List<Event> events = new ArrayList<Event>();
+        try {
+            for (Path entry : stream) {
+                Event ev = visit(entry);
+                if (ev == null) {
+                    report("Entry:  " + entry.toString() + " failed to resolve to a type.");
+                    continue;
+                }
+                String name = entry.getFileName().toString();
+                names.add(name);
+                events.add(ev);
+                Integer x = index.get(name);
+                FileVisitResult result = FileVisitResult.CONTINUE;
+                if (x == null) {
+                    result = readData(new Event(EventType.ADDED, ev.file(), ev.attributes()));
+                } else {
+                    seen.set(x);
+                    if (changed(previous, x, ev)) {
+                        result = readData(new Event(EventType.CHANGED, ev.file(), ev.attributes()));
+                        if (isDirectory(previous.types[x])) {
+                            removeSubtree(entry);
+                        }
+                    }
+                }
+                if (result == FileVisitResult.TERMINATE) {
+                    terminated = true;
+                    return null;
+                }
+                if ((ev.type() == EventType.DIRECTORY) && (dirNode.depth() < maxDepth)
+                    && (result != FileVisitResult.SKIP_SUBTREE)) {
+                    stack.push(new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1));
+                }
+            }
+        } catch (DirectoryIteratorException die) {
+            if (metrics != null) {
+                metrics.error(die.getCause());
+            }
+            report("Directory " + dir.toString() + " cannot be resolved.");
+            return null;
+        } finally {
+            closeStream(stream);
+        }
+        if (previous != null) {
+            for (int x = seen.nextClearBit(0); (x < previous.size()) && !terminated; x = seen.nextClearBit(x + 1)) {
+                Path entry = dir.resolve(previous.names[x]);
+                if (readData(new Event(EventType.REMOVED, entry, (BasicFileAttributes)null)) == FileVisitResult.TERMINATE) {
+                    terminated = true;
+                } else if (isDirectory(previous.types[x])) {
+                    removeSubtree(entry);
+                }
+            }
+        }
+        Snapshot.Directory current = new Snapshot.Directory(Snapshot.keyOf(dirNode.attributes()),
+            Snapshot.mtimeOf(dirNode.attributes()), names.size());
+        for (int x = 0; x < names.size(); x++) {
+            current.names[x] = names.get(x);
+            record(current, x, events.get(x));
+        }
+        return current;
+    }
+
+    /**
+     * Whether an entry differs from what the snapshot holds for it.  A
+     * directory is not changed by what is in it, that shows up below it.
+     */
+    private static boolean changed(Snapshot.Directory previous, int x, Event ev) {
+        byte type = previous.types[x];
+        if (isDirectory(type)) {
+            return !isDirectory((byte)ev.type().ordinal());
+        }
+        return (type != ev.type().ordinal())
+            || (previous.sizes[x] != ev.attributes().size())
+            || (previous.mtimes[x] != Snapshot.mtimeOf(ev.attributes()));
+    }
+
+    private static boolean isDirectory(byte type) {
+        return (type == EventType.DIRECTORY.ordinal()) || (type == EventType.LOOP.ordinal());
+    }
+
+    /**
+     * Records the type, size and modification time of an entry.
+     */
+    private static void record(Snapshot.Directory directory, int x, Event ev) {
+        directory.types[x] = (byte)ev.type().ordinal();
+        directory.sizes[x] = ev.attributes().size();
+        directory.mtimes[x] = Snapshot.mtimeOf(ev.attributes());
+    }
+
+    /**
+     * Reports as removed every entry the snapshot holds below a directory
+     * which has gone.
+     */
+    private void removeSubtree(Path dir) {
+        ArrayDeque<Path> removed = new ArrayDeque<Path>();
+        removed.push(dir);
+        while (!removed.isEmpty() && !terminated) {
+            Path gone = removed.pop();
+            Snapshot.Directory previous = snapshot.get(gone);
+            if (previous == null) {
+                continue;
+            }
+            for (int x = 0; (x < previous.size()) && !terminated; x++) {
+                Path entry = gone.resolve(previous.names[x]);
+                if (readData(new Event(EventType.REMOVED, entry, (BasicFileAttributes)null)) == FileVisitResult.TERMINATE) {
+                    terminated = true;
+                } else if (isDirectory(previous.types[x])) {
+                    removed.push(entry);
+                }
+            }
+            if (pruning) {
+                snapshot.remove(gone);
+            }
+        }
+    }
+
+    /**
+     * Brings the snapshot up to date after the given entries of a directory
+     * have changed, reporting them as added, removed or changed, for
+     * {@code TreeWatcher}.  Only those entries are stat'ed; {@code null}
+     * compares the whole directory with the snapshot, as after events have
+     * been lost.  A sub directory new to the snapshot is walked in full and
+     * reported as added, the others are not descended into.  A subtree
+     * removed is dropped from the snapshot.  {@code depth} is the depth of
+     * the directory in the walk, so the maximum depth is still counted from
+     * the start of the walk.  Returns the directories added to the
+     * snapshot, which may need watching.  The walker must have a snapshot
+     * and no attribute cache, as the attributes must be fresh.
+     */
+    List<Path> update(Path dir, int depth, Collection<Path> entries) {
+        if (snapshot == null) {
+            throw new IllegalStateException("Only a snapshot can be updated.");
+        }
+        terminated = false;
+        pruning = true;
+        List<Path> added = new ArrayList<Path>();
+        try {
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = getAttributes(dir, false);
+            } catch (IOException ioe) {
+                // Gone, which the event of its parent reports.
+                return added;
+            }
+            if (!attrs.isDirectory()) {
+                return added;
+            }
+            DirectoryNode dirNode = new DirectoryNode(dir, attrs, depth);
+            Snapshot.Directory previous = snapshot.get(dir);
+            Snapshot.Directory current = null;
+            if ((entries == null) || (previous == null)) {
+                current = compareDirectory(dirNode, previous);
+            } else {
+                current = compareEntries(dirNode, previous, entries);
+            }
+            if (current == null) {
+                return added;
+            }
+            snapshot.put(dir, current);
+            if (previous == null) {
+                added.add(dir);
+            }
+            while (!terminated && !stack.isEmpty()) {
+                DirectoryNode child = stack.pop();
+                if (snapshot.get(child.directory()) != null) {
+                    // Already known, and watched on its own.
+                    continue;
+                }
+                Snapshot.Directory walked = compareDirectory(child, null);
+                if (walked != null) {
+                    snapshot.put(child.directory(), walked);
+                    added.add(child.directory());
+                }
+            }
+        } finally {
+            stack.clear();
+            pruning = false;
+        }
+        return added;
+    }
+
+    /**
+     * Compares the given entries of a directory with the snapshot, reporting
+     * those added, removed and changed and pushing the sub directories.
+     * Returns what the snapshot should now hold for the directory, the
+     * other entries as they were, or {@code null} if the walk was ended.
+     */
+    private Snapshot.Directory compareEntries(DirectoryNode dirNode, Snapshot.Directory previous,
+        Collection<Path> entries) {
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        for (int x = 0; x < previous.size(); x++) {
+            index.put(previous.names[x], x);
+        }
+        Map<String, Event> present = new LinkedHashMap<String, Event>();
+        Set<String> gone = new HashSet<String>();
+        int newNames = 0;
+        for (Path entry : entries) {
+            String name = entry.getFileName().toString();
+            if (present.containsKey(name) || gone.contains(name)
+                || ((filter != null) && filter.excludes(entry))) {
+                continue;
+            }
+            Integer x = index.get(name);
+            Event ev = visit(entry);
+            FileVisitResult result = FileVisitResult.CONTINUE;
+            if (ev == null) {
+                // The entry went away.
+                if (x == null) {
+                    continue;
+                }
+                gone.add(name);
+                result = readData(new Event(EventType.REMOVED, entry, (BasicFileAttributes)null));
+                if ((result != FileVisitResult.TERMINATE) && isDirectory(previous.types[x])) {
+                    removeSubtree(entry);
+                }
+            } else {
+                present.put(name, ev);
+                if (x == null) {
+                    newNames++;
+                    result = readData(new Event(EventType.ADDED, ev.file(), ev.attributes()));
+                } else if (changed(previous, x, ev)) {
+                    result = readData(new Event(EventType.CHANGED, ev.file(), ev.attributes()));
+                    if (isDirectory(previous.types[x])) {
+                        removeSubtree(entry);
+                    }
+                }
+                if ((ev.type() == EventType.DIRECTORY) && (dirNode.depth() < maxDepth)
+                    && (result != FileVisitResult.SKIP_SUBTREE)) {
+                    stack.push(new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1));
+                }
+            }
+            if (result == FileVisitResult.TERMINATE) {
+                terminated = true;
+                return null;
+            }
+        }
+        Snapshot.Directory current = new Snapshot.Directory(Snapshot.keyOf(dirNode.attributes()),
+            Snapshot.mtimeOf(dirNode.attributes()), previous.size() - gone.size() + newNames);
+        int y = 0;
+        for (int x = 0; x < previous.size(); x++) {
+            String name = previous.names[x];
+            if (gone.contains(name)) {
+                continue;
+            }
+            current.names[y] = name;
+            Event ev = present.get(name);
+            if (ev != null) {
+                record(current, y, ev);
+            } else {
+                current.types[y] = previous.types[x];
+                current.sizes[y] = previous.sizes[x];
+                current.mtimes[y] = previous.mtimes[x];
+            }
+            y++;
+        }
+        for (Map.Entry<String, Event> entry : present.entrySet()) {
+            if (!index.containsKey(entry.getKey())) {
+                current.names[y] = entry.getKey();
+                record(current, y, entry.getValue());
+                y++;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Walk the tree on the calling thread from the directories the
+     * checkpoint holds as waiting, the start of the walk for a new one.
+     */
+    private void walkCheckpointed(BasicFileAttributes attrs) {
+        for (Checkpoint.Pending pending : checkpoint.frontier()) {
+            BasicFileAttributes dirAttrs = attrs;
+            if (pending.id != 0) {
+                try {
+                    dirAttrs = getAttributes(pending.dir, canUseCached);
+                } catch (IOException ioe) {
+                    // Reported when it fails to open.
+                    dirAttrs = null;
+                }
+            }
+            DirectoryNode dirNode = new DirectoryNode(pending.dir, dirAttrs, pending.depth);
+            dirNode.setId(pending.id);
+            stack.push(dirNode);
+        }
+        boolean computing = true;
+        while(computing) {
+            computing = next();
+        };
+    }
+
+    /**
+     * Records in the checkpoint that a directory has been read and pushed the
+     * given number of sub directories, which are on the top of the stack.
+     * The output is written out before the checkpoint is synced.
+     */
+    private void checkpointed(DirectoryNode dirNode, int pushed) {
+        if ((checkpoint == null) || terminated) {
+            return;
+        }
+        List<DirectoryNode> children = new ArrayList<DirectoryNode>(pushed);
+        List<Path> paths = new ArrayList<Path>(pushed);
+        Iterator<DirectoryNode> top = stack.iterator();
+        for (int x = 0; x < pushed; x++) {
+            children.add(0, top.next());
+        }
+        for (DirectoryNode child : children) {
+            paths.add(child.directory());
+        }
+        try {
+            long first = checkpoint.completed(dirNode.id(), dirNode.directory(), paths);
+            for (int x = 0; x < pushed; x++) {
+                children.get(x).setId(first + x);
+            }
+            if (checkpoint.syncDue()) {
+                if (sink != null) {
+                    sink.flush();
+                } else {
+                    System.out.flush();
+                }
+                checkpoint.sync();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Returns a lazy iterator over the events of a walk from the given file.
+     * Unlike {@code walk} the tree is walked depth first as it is read: each
+     * event is returned as soon as its entry is read and a directory is
+     * descended into as soon as it is found.  Only the directories from the
+     * start down to the current one are held open, so the memory used is
+     * bounded by the depth of the tree and not by the width of its
+     * directories.  The iterator must be closed if it is not exhausted.
+     */
+    WalkIterator iterator(Path start) {
+        return new WalkIterator(start);
+    }
+
+    /**
+     * Returns a {@code Spliterator} over the events of a walk from the given
+     * file, see {@code iterator}.
+     */
+    Spliterator<Event> spliterator(Path start) {
+        return Spliterators.spliteratorUnknownSize(iterator(start),
+            Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * Returns a lazy stream of the events of a walk from the given file, see
+     * {@code iterator}.  Closing the stream closes every directory still
+     * open, so it should be used in a try-with-resources statement.
+     */
+    Stream<Event> stream(Path start) {
+        final WalkIterator iterator = iterator(start);
+        Spliterator<Event> split = Spliterators.spliteratorUnknownSize(iterator,
+            Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(split, false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                iterator.close();
+            }
+        });
+    }
+
+    /**
+     * The lazy depth first iterator returned by {@code iterator}.
+     */
+    class WalkIterator implements Iterator<Event>, Closeable {
+        private final ArrayDeque<DirectoryNode> open = new ArrayDeque<DirectoryNode>();
+        // The leaf count of each open directory.
+        private final ArrayDeque<LeafCount> counts = new ArrayDeque<LeafCount>();
+        private Event next;
+
+        WalkIterator(Path start) {
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = getAttributes(start, canUseCached);
+            } catch (IOException ioe) {
+                next = new Event(EventType.START_DIRECTORY, start, ioe);
+                return;
+            } catch (SecurityException se) {
+                if (ignoreSecurityException){
+                    return;
+                } else {
+                   throw(se);
+                }
+            }
+            next = new Event(EventType.DIRECTORY, start, attrs);
+            startWalk();
+            firstVisit(start, attrs);
+            descend(new DirectoryNode(start, attrs, 0));
+        }
+
+        /**
+         * Opens the directory and makes it the one being read.
+         */
+        private void descend(DirectoryNode dirNode) {
+            DirectoryStream<Path> stream = newDirectoryStream(dirNode.directory());
+            if (stream != null) {
+                dirNode.open(stream);
+                open.push(dirNode);
+                if (metrics != null) {
+                    metrics.directory(dirNode.depth(), open.size());
+                }
+                counts.push(new LeafCount(dirNode.directory()));
+            }
+        }
+
+        /**
+         * Reads entries until one resolves to an event, closing each
+         * directory as it is exhausted.
+         */
+        private Event read() {
+            while (!open.isEmpty()) {
+                DirectoryNode dirNode = open.peek();
+                Path entry = null;
+                try {
+                    if (dirNode.iterator().hasNext()) {
+                        entry = dirNode.iterator().next();
+                    }
+                } catch (DirectoryIteratorException die) {
+                    if (metrics != null) {
+                        metrics.error(die.getCause());
+                    }
+                    report("Directory " + dirNode.directory().toString() + " cannot be resolved.");
+                }
+                if (entry == null) {
+                    closeQuietly(open.pop().stream());
+                    counts.pop();
+                    continue;
+                }
+                Event ev = counts.peek().visit(entry);
+                if (ev == null) {
+                    report("Entry:  " + entry.toString() + " failed to resolve to a type.");
+                    continue;
+                }
+                if ((ev.type() == EventType.DIRECTORY) && (dirNode.depth() < maxDepth)) {
+                    descend(new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1));
+                }
+                if ((filter != null) && !filter.includes(ev)) {
+                    continue;
+                }
+                return ev;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = read();
+            }
+            return (next != null);
+        }
+
+        @Override
+        public Event next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Event ev = next;
+            next = null;
+            return ev;
+        }
+
+        /**
+         * Closes every directory still open.
+         */
+        @Override
+        public void close() {
+            while (!open.isEmpty()) {
+                closeQuietly(open.pop().stream());
+            }
+            counts.clear();
+            next = null;
+        }
+    }
+
+    /**
+     * Walk the tree on a ForkJoinPool.  Each directory is read by its own
+     * task which forks a new task for every sub directory, so idle workers
+     * steal whole subtrees from the busy ones.
+     */
+    private void walkParallel(Path entry, BasicFileAttributes attrs) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Listing listing = new Listing(entry, attrs, 0);
+        DirectoryTask task = new DirectoryTask(listing);
+        listing.future = task;
+        pool.execute(task);
+        try {
+            drain(listing);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Walk the tree giving every directory listing and every stat its own
+     * virtual thread, which hides the round trip of a network file system
+     * without the memory of a large platform thread pool.  At most
+     * {@code fanOut} listings and stats are in flight at any one time so the
+     * server is not overwhelmed.
+     */
+    private void walkFanOut(Path entry, BasicFileAttributes attrs) {
+        ExecutorService executor = newVirtualThreadExecutor();
+        Semaphore permits = new Semaphore(fanOut);
+        Listing listing = new Listing(entry, attrs, 0);
+        listing.future = executor.submit(new FanOutTask(listing, executor, permits));
+        try {
+            drain(listing);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The streams a walk on the given number of threads holds open at once
+     * when no maximum is set: one per thread, but no more than half the
+     * file descriptors the process has free, leaving the rest to the JVM
+     * and the sink.
+     */
+    private static int defaultMaxOpenStreams(int threads) {
+        long streams = threads;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean)os;
+            long free = unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount();
+            streams = Math.min(streams, free / 2);
+        }
+        return (int)Math.max(1, streams);
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for each task.
+     * Virtual threads need Java 21, older runtimes get a cached pool of
+     * platform threads instead.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Waits for the listings of a concurrent walk in the order the single
+     * threaded walk visits the directories and, for an ordered walk, outputs
+     * the events each listing has buffered.  The sub directories an ordered
+     * walk skips have already been forked, they are cancelled and never
+     * output.
+     */
+    private void drain(Listing listing) {
+        ArrayDeque<Listing> pending = new ArrayDeque<Listing>();
+        pending.push(listing);
+        while (!pending.isEmpty() && !terminated) {
+            listing = pending.pop();
+            await(listing.future);
+            // The events from {@code end} on are skipped.
+            int end = listing.events.size();
+            BitSet skipped = new BitSet();
+            for (int x = 0; x < end; x++) {
+                FileVisitResult result = readData(listing.events.get(x));
+                if (result == FileVisitResult.TERMINATE) {
+                    terminated = true;
+                    return;
+                } else if ((x == 0) && (result != FileVisitResult.CONTINUE)) {
+                    // The directory itself is skipped.
+                    end = 1;
+                } else if (result == FileVisitResult.SKIP_SUBTREE) {
+                    skipped.set(x);
+                } else if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    skipped.set(x);
+                    end = x + 1;
+                }
+            }
+            // The last sub directory found is the first one walked.
+            for (Listing child : listing.children) {
+                if (!ordered || ((child.eventIndex < end) && !skipped.get(child.eventIndex))) {
+                    pending.push(child);
+                } else {
+                    child.future.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a task and returns its result, rethrowing whatever it failed
+     * with.
+     */
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The walk was interrupted.", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * The result of reading a single directory in a concurrent walk.
+     */
+    private class Listing {
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+        private final int depth;
+        private final List<Event> events = new ArrayList<Event>();
+        private final List<Listing> children = new ArrayList<Listing>();
+        private Future<?> future;
+        // The index of the event of this directory in the parent listing,
+        // only kept when the walk is ordered.
+        private int eventIndex;
+        // Set when the sink skips the rest of the directory.
+        private boolean done;
+
+        Listing(Path dir, BasicFileAttributes attrs, int depth) {
+            this.dir = dir;
+            this.attrs = attrs;
+            this.depth = depth;
+        }
+
+        /**
+         * Output the event now, or keep it for the calling thread when the
+         * walk is ordered.  The sink's decision is only known at once when
+         * the walk is not ordered.
+         */
+        FileVisitResult output(Event ev) {
+            if (ordered) {
+                events.add(ev);
+                return FileVisitResult.CONTINUE;
+            }
+            FileVisitResult result;
+            synchronized (FileTreeWalker.this) {
+                if (terminated) {
+                    result = FileVisitResult.TERMINATE;
+                } else {
+                    result = readData(ev);
+                    if (result == FileVisitResult.TERMINATE) {
+                        terminated = true;
+                    }
+                }
+            }
+            if ((result == FileVisitResult.SKIP_SIBLINGS) || (result == FileVisitResult.TERMINATE)) {
+                done = true;
+            }
+            return result;
+        }
+
+        /**
+         * Opens the directory and outputs its own event, returning
+         * {@code null} if the directory cannot be read or is skipped.
+         */
+        DirectoryStream<Path> open() {
+            if (terminated) {
+                return null;
+            }
+            DirectoryStream<Path> stream = openDirectory(dir);
+            if ((stream != null) && (metrics != null)) {
+                metrics.directory(depth, 0);
+            }
+            if ((stream != null) && (output(new Event(EventType.DIRECTORY, dir, attrs)) != FileVisitResult.CONTINUE)) {
+                closeStream(stream);
+                return null;
+            }
+            return stream;
+        }
+
+        /**
+         * Outputs the visit of an entry, returning the listing for it when it
+         * is a directory to descend into.
+         */
+        Listing add(Path entry, Event ev) {
+            if (ev == null) {
+                report("Entry:  " + entry.toString() + " failed to resolve to a type.");
+                return null;
+            }
+            if (output(ev) != FileVisitResult.CONTINUE) {
+                return null;
+            }
+            if ((ev.type() == EventType.DIRECTORY) && (depth < maxDepth)) {
+                // A followed link is walked under the real path of its target.
+                Listing child = new Listing(ev.file(), ev.attributes(), depth + 1);
+                child.eventIndex = events.size() - 1;
+                children.add(child);
+                return child;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A task reading a single directory for the parallel walk.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Listing listing;
+
+        DirectoryTask(Listing listing) {
+            this.listing = listing;
+        }
+
+        @Override
+        protected void compute() {
+            DirectoryStream<Path> stream = listing.open();
+            if (stream == null) {
+                return;
+            }
+            List<DirectoryTask> tasks = new ArrayList<DirectoryTask>();
+            LeafCount leafCount = new LeafCount(listing.dir);
+            try {
+                for (Path entry : stream) {
+                    Listing child = listing.add(entry, leafCount.visit(entry));
+                    if (child != null) {
+                        DirectoryTask task = new DirectoryTask(child);
+                        child.future = task;
+                        tasks.add(task);
+                    }
+                    if (listing.done) {
+                        break;
+                    }
+                }
+            } catch (DirectoryIteratorException die) {
+                if (metrics != null) {
+                    metrics.error(die.getCause());
+                }
+                report("Directory " + listing.dir.toString() + " cannot be resolved.");
+            } finally {
+                closeStream(stream);
+            }
+            for (DirectoryTask task : tasks) {
+                task.fork();
+            }
+        }
+    }
+
+    /**
+     * A task reading a single directory for the virtual thread walk.  The
+     * entries are stat'ed on virtual threads of their own.
+     */
+    private class FanOutTask implements Callable<Void> {
+        private final Listing listing;
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        FanOutTask(Listing listing, ExecutorService executor, Semaphore permits) {
+            this.listing = listing;
+            this.executor = executor;
+            this.permits = permits;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            List<Path> entries = new ArrayList<Path>();
+            final LeafCount leafCount;
+            permits.acquire();
+            try {
+                DirectoryStream<Path> stream = listing.open();
+                if (stream == null) {
+                    return null;
+                }
+                leafCount = new LeafCount(listing.dir);
+                try {
+                    for (Path entry : stream) {
+                        entries.add(entry);
+                    }
+                } catch (DirectoryIteratorException die) {
+                    if (metrics != null) {
+                        metrics.error(die.getCause());
+                    }
+                    report("Directory " + listing.dir.toString() + " cannot be resolved.");
+                } finally {
+                    closeStream(stream);
+                }
+            } finally {
+                permits.release();
+            }
+            List<Future<Event>> visits = new ArrayList<Future<Event>>(entries.size());
+            for (final Path entry : entries) {
+                if (leafCount.leaf()) {
+                    // Nothing here can be a directory, so nothing is stat'ed.
+                    visits.add(CompletableFuture.completedFuture(leafCount.visit(entry)));
+                    continue;
+                }
+                visits.add(executor.submit(new Callable<Event>() {
+                    @Override
+                    public Event call() throws InterruptedException {
+                        permits.acquire();
+                        try {
+                            return visit(entry);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                }));
+            }
+            for (int x = 0; x < visits.size(); x++) {
+                Listing child = listing.add(entries.get(x), await(visits.get(x)));
+                if (child != null) {
+                    child.future = executor.submit(new FanOutTask(child, executor, permits));
+                }
+                if (listing.done) {
+                    break;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Opens a directory stream, waiting while the maximum number of streams
+     * are open.  Returns {@code null} if the directory cannot be read.
+     */
+    private DirectoryStream<Path> openDirectory(Path dir) {
+        if (openStreams != null) {
+            openStreams.acquireUninterruptibly();
+        }
+        DirectoryStream<Path> stream = null;
+        try {
+            stream = newDirectoryStream(dir);
+        } finally {
+            if ((stream == null) && (openStreams != null)) {
+                openStreams.release();
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Opens a directory stream without counting it against the maximum
+     * number of open streams.  Returns {@code null} if the directory cannot
+     * be read.
+     */
+    private DirectoryStream<Path> newDirectoryStream(Path dir) {
+        try {
+            long start = (metrics == null) ? 0 : System.nanoTime();
+            DirectoryStream<Path> stream = (filter == null) ? Files.newDirectoryStream(dir)
+                : Files.newDirectoryStream(dir, filter);
+            if (metrics != null) {
+                stream = metrics.opened(stream, System.nanoTime() - start);
+            }
+            return stream;
+        } catch (IOException ioe) {
+            if (metrics != null) {
+                metrics.error(ioe);
+            }
+            report("Directory " + dir.toString() + " cannot be resolved.");
+        } catch (SecurityException se) {
+            if (metrics != null) {
+                metrics.error(se);
+            }
+            if (!ignoreSecurityException){
+                throw se;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close a directory stream opened by {@code openDirectory}, ignoring any
+     * error.
+     */
+    private void closeStream(DirectoryStream<Path> stream) {
+        if (stream != null) {
+            closeQuietly(stream);
+            if (openStreams != null) {
+                openStreams.release();
+            }
+        }
+    }
+
+    /**
+     * Close a directory stream, ignoring any error.
+     */
+    private static void closeQuietly(DirectoryStream<Path> stream) {
+        try {
+            stream.close();
+        } catch (IOException ignore) { }
+    }
+
+    /**
+     * Iterates through the directory and prints all the values.
+     * Pushes all directories onto the stack.
+     */
+    boolean next() {
+        // Entry is a directory.
+        Event ev = null;
+        DirectoryNode dirNode = pop();
+         if (dirNode == null) {
+            return false;      // stack is empty, we are done
+         }
+         dirNode = openArchive(dirNode);
+         if (dirNode == null) {
+            return (waiting() > 0);
+         }
+         DirectoryStream<Path> stream = openDirectory(dirNode.directory());
+         if (stream == null) {
+            checkpointed(dirNode, 0);
+            return (waiting() > 0);
+         }
+         dirNode.open(stream);
+         if (metrics != null) {
+            metrics.directory(dirNode.depth(), waiting());
+         }
+         // The attributes were read when the directory was visited.
+         ev = new Event(EventType.DIRECTORY, dirNode.directory(), dirNode.attributes());
+         FileVisitResult result = readData(ev);
+         if (result == FileVisitResult.TERMINATE) {
+            closeStream(stream);
+            terminated = true;
+            return false;
+         } else if (result != FileVisitResult.CONTINUE) {
+            closeStream(stream);
+            checkpointed(dirNode, 0);
+            return (waiting() > 0);
+         }
+         // Read and print all the directory values.
+         int waiting = waiting();
+         readDirectory(dirNode);
+         if (terminated) {
+            return false;
+         }
+         checkpointed(dirNode, waiting() - waiting);
+       // Check to see if there is more.
+       return (waiting() > 0);
+    }
+    /**
+     * Output the data, or hand it to the sink when there is one.
+     */
+     FileVisitResult readData(Event ev) {
+          if ((filter != null) && !filter.includes(ev)) {
+              return FileVisitResult.CONTINUE;
+          }
+          if (sink != null) {
+              return sink.accept(ev);
+          }
+          Path tmp = null;
+          switch (ev.type()) {
+              case ENTRY :
+                  tmp = ev.file();
+                  System.out.println("Entry:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case LINK :
+                  tmp = ev.file();
+                  System.out.println("Link:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case START_DIRECTORY :
+                  tmp = ev.file();
+                  System.out.println("Start Directory Entry:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case DIRECTORY :
+                  tmp = ev.file();
+                  System.out.println("Directory Entry:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case LOOP :
+                  tmp = ev.file();
+                  System.out.println("Loop:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case ADDED :
+                  tmp = ev.file();
+                  System.out.println("Added:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case REMOVED :
+                  tmp = ev.file();
+                  System.out.println("Removed:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              case CHANGED :
+                  tmp = ev.file();
+                  System.out.println("Changed:  " + ArchiveFileSystems.name(tmp));
+                  break;
+              default:
+            }
+          return FileVisitResult.CONTINUE;
+    }
+     
+    /**
+     * Pops the directory node that is the current top of the stack safely.
+     */
+    DirectoryNode pop() {
+        if (queue != null) {
+            return queue.poll();
+        }
+        if (!stack.isEmpty()) {
+            DirectoryNode node = stack.pop();
+            return node;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a directory to those waiting to be walked.
+     */
+    private void push(DirectoryNode dirNode) {
+        if (queue != null) {
+            queue.add(dirNode);
+        } else {
+            stack.push(dirNode);
+        }
+    }
+
+    /**
+     * Whether the entry just reported is an archive the walk goes into.
+     */
+    private boolean walksInto(DirectoryNode dirNode, Event ev, FileVisitResult result) {
+        return (archives != null) && (checkpoint == null) && (ev.type() == EventType.ENTRY)
+            && (dirNode.archive() == null) && (dirNode.depth() < maxDepth)
+            && (result == FileVisitResult.CONTINUE) && ArchiveFileSystems.isArchive(ev.file());
+    }
+
+    /**
+     * Returns the node of a directory about to be read with its archive
+     * open, opening the archive if it has not been opened yet or has been
+     * closed since.  Returns {@code null} if the archive cannot be opened.
+     */
+    private DirectoryNode openArchive(DirectoryNode dirNode) {
+        Path archive = dirNode.archive();
+        Path dir = dirNode.directory();
+        if (dirNode.skipped()) {
+            // Its archive could not be opened again, which has been reported.
+            return null;
+        }
+        if ((archive == null) || ((dir != archive) && dir.getFileSystem().isOpen())) {
+            return dirNode;
+        }
+        try {
+            if (dir == archive) {
+                Path root = archives.root(archive);
+                return new DirectoryNode(root, getAttributes(root, false), dirNode.depth(), archive);
+            }
+            return new DirectoryNode(archives.open(archive).getPath(dir.toString()), dirNode.attributes(),
+                dirNode.depth(), archive);
+        } catch (IOException ioe) {
+            if (metrics != null) {
+                metrics.error(ioe);
+            }
+            report("Archive " + archive.toString() + " cannot be opened:  " + ioe.toString());
+        }
+        return null;
+    }
+
+    /**
+     * The number of directories waiting to be walked.
+     */
+    private int waiting() {
+        return (queue != null) ? queue.size() : stack.size();
+    }
+   
+   /**
+    * Read and print all the elements of a directory.
+    */
+   void readDirectory(DirectoryNode dirNode) {
+        DirectoryStream<Path>reader = dirNode.stream();
+        Iterator<Path>dirData = dirNode.iterator();
+        // A sorted walk pushes the sub directories last first, so the first pops first.
+        List<DirectoryNode> children = null;
+        try {
+            if (traversal == Traversal.SORTED) {
+                List<Path> entries = new ArrayList<Path>();
+                try {
+                    while (dirData.hasNext()) {
+                        entries.add(dirData.next());
+                    }
+                } catch (DirectoryIteratorException die) {
+                    // The entries read before the error are still walked.
+                    unresolved(dirNode.directory(), die);
+                }
+                Collections.sort(entries);
+                dirData = entries.iterator();
+                children = new ArrayList<DirectoryNode>();
+            }
+            Event ev = null;
+            EventType dirtype = null;
+            Path entry = null;
+            LeafCount leafCount = new LeafCount(dirNode.directory());
+            while(dirData.hasNext()) {
+                  entry = dirData.next();
+                  ev = leafCount.visit(entry);
+                  if (ev == null) {
+                      report("Entry:  " + entry.toString() + " failed to resolve to a type.");
+                      continue;
+                  }
+                  dirtype = ev.type();
+                  // Print each entry as soon as it is read.
+                  FileVisitResult result = readData(ev);
+                  if (result == FileVisitResult.TERMINATE) {
+                     terminated = true;
+                     break;
+                  } else if (result == FileVisitResult.SKIP_SIBLINGS) {
+                     break;
+                  }
+                  // Seperate out directories for further processing.
+                  DirectoryNode tmpNode = null;
+                  if ((dirtype == EventType.DIRECTORY) && (dirNode.depth() < maxDepth) && (result == FileVisitResult.CONTINUE)) {
+                     // A followed link is walked under the real path of its target.
+                     tmpNode = new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1, dirNode.archive());
+                  } else if (walksInto(dirNode, ev, result)) {
+                     // The archive is only opened when it is popped.
+                     tmpNode = new DirectoryNode(ev.file(), ev.attributes(), dirNode.depth() + 1, ev.file());
+                  }
+                  if (tmpNode != null) {
+                     if (children != null) {
+                        children.add(tmpNode);
                      } else {
-                        throw se;
+                        push(tmpNode);
                      }
-                 }
-                 DirectoryNode tmpNode = new DirectoryNode(entry, attrs.fileKey(), stream);
-                 stack.push(tmpNode);
-              }
-         };
-       // Close the directory stream.
-       try {
-          reader.close();
-       } catch (IOException ignore) { }
+                  }
+             };
+        } catch (DirectoryIteratorException die) {
+            unresolved(dirNode.directory(), die);
+        } finally {
+            // Close the directory stream.
+            closeStream(reader);
+        }
+       if (children != null) {
+          for (int x = children.size() - 1; x >= 0; x--) {
+             push(children.get(x));
+          }
+       }
+    }
+
+    /**
+     * Reports a directory whose listing failed part way through.
+     */
+    private void unresolved(Path dir, DirectoryIteratorException die) {
+        if (metrics != null) {
+            metrics.error(die.getCause());
+        }
+        report("Directory " + dir.toString() + " cannot be resolved.");
     }
 }
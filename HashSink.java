@@ -0,0 +1,370 @@
+/**
+ *  HashSink: A java class to hash the contents of the files of a file tree walk.
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * A sink hashing the contents of the regular files of the walk on a pool of
+ * worker threads, and writing a {@code Manifest} of their SHA-256 and
+ * CRC32C.  The size and modification time come from the attributes the walk
+ * has already read, so the files are not stat'ed again.  Each event is
+ * passed on to the next sink, if there is one.
+ *
+ * A file smaller than {@code MAP_THRESHOLD} is read through a direct buffer
+ * taken from a pool holding one per worker, a larger one is mapped a region
+ * at a time, so neither is copied onto the heap.  Given the manifest of an
+ * earlier walk, a file with the same size and modification time keeps the
+ * hashes it had and is not read.
+ *
+ * The lines are written in the order of the walk.  At most so many files per
+ * worker are waiting to be hashed or written, beyond that the walk waits for
+ * the oldest, so the memory used does not grow with the tree.  The manifest
+ * is written beside its file and moved over it when the walk is over, so the
+ * manifest of the earlier walk may be the same file.  A walk which does not
+ * complete leaves the manifest that was there alone.
+ */
+class HashSink implements EventSink {
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAP_REGION = 64L * 1024 * 1024;
+    private static final int PENDING_PER_THREAD = 64;
+    private static final HexFormat HEX = HexFormat.of();
+    private final Path file;
+    private final Path temp;
+    private final Writer out;
+    private final EventSink next;
+    private final Manifest previous;
+    private final ExecutorService workers;
+    private final int maxPending;
+    // The lines of the files in the order of the walk, hashed or not.
+    private final ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+    private final LongAdder hashed = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private PrintStream messages = System.out;
+    private boolean finished = false;
+
+    /**
+     * Writes the manifest to the given file, hashing on {@code threads}
+     * workers.  {@code previous} is the manifest whose hashes may be used
+     * again, or {@code null}, and {@code next} the sink the events are passed
+     * on to, or {@code null}.
+     */
+    HashSink(Path file, int threads, Manifest previous, EventSink next) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The hash threads must be at least one:  " + threads);
+        }
+        this.file = file;
+        this.temp = file.resolveSibling(file.getFileName().toString() + ".tmp");
+        this.out = new BufferedWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8), 64 * 1024);
+        this.out.write(Manifest.HEADER);
+        this.out.write('\n');
+        this.next = next;
+        this.previous = previous;
+        this.maxPending = threads * PENDING_PER_THREAD;
+        this.buffers = new ArrayBlockingQueue<ByteBuffer>(threads);
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "HashSink worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets where the files which cannot be hashed are reported,
+     * {@code System.out} by default.
+     */
+    void setMessages(PrintStream messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        FileVisitResult result = (next == null) ? FileVisitResult.CONTINUE : next.accept(ev);
+        FileTreeWalker.EventType type = ev.type();
+        if ((type == FileTreeWalker.EventType.ENTRY) || (type == FileTreeWalker.EventType.ADDED)
+            || (type == FileTreeWalker.EventType.CHANGED)) {
+            // A names only walk leaves the attributes of most files unread.
+            BasicFileAttributes attrs = ev.attributes();
+            if ((attrs == null) || attrs.isRegularFile()) {
+                schedule(ev.file(), attrs);
+            }
+        }
+        write(false);
+        return result;
+    }
+
+    /**
+     * Queues the line of a file, taken from the earlier manifest or from a
+     * worker hashing the file.
+     */
+    private void schedule(final Path entry, final BasicFileAttributes attrs) {
+        if (attrs != null) {
+            String line = reuse(entry, attrs);
+            if (line != null) {
+                pending.add(CompletableFuture.completedFuture(line));
+                return;
+            }
+        }
+        pending.add(workers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return hash(entry, attrs);
+            }
+        }));
+    }
+
+    /**
+     * The line of the earlier manifest for a file which has not changed, or
+     * {@code null}.
+     */
+    private String reuse(Path entry, BasicFileAttributes attrs) {
+        if (previous == null) {
+            return null;
+        }
+        Manifest.Entry known = previous.get(entry);
+        if ((known == null) || !known.unchanged(attrs.size(), Snapshot.mtimeOf(attrs))) {
+            return null;
+        }
+        reused.increment();
+        return Manifest.line(entry, known);
+    }
+
+    /**
+     * Hashes a file on a worker, returning its line or {@code null} if it
+     * is not a regular file or cannot be read.
+     */
+    private String hash(Path entry, BasicFileAttributes attrs) {
+        try {
+            if (attrs == null) {
+                attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isRegularFile()) {
+                    return null;
+                }
+                String line = reuse(entry, attrs);
+                if (line != null) {
+                    return line;
+                }
+            }
+            MessageDigest sha256 = digest();
+            CRC32C crc32c = new CRC32C();
+            long read = 0;
+            try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size >= MAP_THRESHOLD) {
+                    for (long position = 0; position < size; position += MAP_REGION) {
+                        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_REGION, size - position));
+                        read += region.remaining();
+                        crc32c.update(region.duplicate());
+                        sha256.update(region);
+                    }
+                } else {
+                    ByteBuffer buffer = buffers.poll();
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                    }
+                    try {
+                        while (channel.read(buffer) >= 0) {
+                            buffer.flip();
+                            read += buffer.remaining();
+                            crc32c.update(buffer.duplicate());
+                            sha256.update(buffer);
+                            buffer.clear();
+                        }
+                    } finally {
+                        buffer.clear();
+                        buffers.offer(buffer);
+                    }
+                }
+            }
+            hashed.increment();
+            bytes.add(read);
+            Manifest.Entry hashes = new Manifest.Entry(HEX.formatHex(sha256.digest()),
+                String.format("%08x", crc32c.getValue()), attrs.size(), Snapshot.mtimeOf(attrs));
+            return Manifest.line(entry, hashes);
+        } catch (ClosedByInterruptException cbie) {
+            // The walk did not complete and the workers were stopped.
+            return null;
+        } catch (IOException ioe) {
+            errors.increment();
+            messages.println("File " + entry.toString() + " cannot be hashed:  " + ioe.toString());
+            return null;
+        }
+    }
+
+    /**
+     * The SHA-256 digest of the worker, reset for a new file.
+     */
+    private MessageDigest digest() {
+        MessageDigest digest = digests.get();
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+            digests.set(digest);
+        }
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Writes out the lines at the head of the queue which are ready, waiting
+     * for the oldest while too many are queued, or for all of them when
+     * {@code all} is set.
+     */
+    private void write(boolean all) {
+        try {
+            while (!pending.isEmpty() && (all || pending.peek().isDone() || (pending.size() > maxPending))) {
+                String line = await(pending.poll());
+                if (line != null) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private static String await(Future<String> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes out every file queued, waiting for those being hashed.
+     */
+    @Override
+    public void flush() {
+        write(true);
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        if (next != null) {
+            next.flush();
+        }
+    }
+
+    /**
+     * Writes out the rest of the manifest, moves it over its file and stops
+     * the workers.
+     */
+    @Override
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            write(true);
+            out.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            workers.shutdownNow();
+            if (next != null) {
+                next.finish();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and deletes the manifest being written, keeping the
+     * one of the last complete walk and the hashes it holds.
+     */
+    @Override
+    public void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        workers.shutdownNow();
+        try {
+            out.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException ioe) {
+            messages.println("Manifest " + temp.toString() + " cannot be deleted:  " + ioe.toString());
+        } finally {
+            if (next != null) {
+                next.abort();
+            }
+        }
+    }
+
+    long hashed() {
+        return hashed.sum();
+    }
+
+    long reused() {
+        return reused.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Manifest:  " + hashed.sum() + " files hashed (" + bytes.sum() + " bytes), "
+            + reused.sum() + " reused, " + errors.sum() + " errors";
+    }
+}
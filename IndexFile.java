@@ -0,0 +1,190 @@
+/**
+ *  IndexFile: A java class to read the index of a file tree walk.
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads an index written by {@code IndexSink}.  The file is memory mapped
+ * and each value is read from the mapping when asked for, so opening an
+ * index of any size costs the same and nothing is parsed or copied.  Entries
+ * are numbered from zero in the order the walk reported them.
+ *
+ *    java IndexFile index
+ *
+ * lists the type, size, modification time and path of every entry.
+ */
+public class IndexFile {
+    private static final FileTreeWalker.EventType[] TYPES = FileTreeWalker.EventType.values();
+    private static final String SEPARATOR = FileSystems.getDefault().getSeparator();
+
+    private final long count;
+    private final long directoryCount;
+    private final Section[] sections = new Section[IndexSink.SECTIONS];
+
+    /**
+     * One column of the index, mapped in pieces of at most a gigabyte as a
+     * single mapping cannot pass two.  The columns of ints and longs never
+     * have a value across two pieces.
+     */
+    private static class Section {
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+        private final MappedByteBuffer[] chunks;
+
+        Section(FileChannel channel, long offset, long size) throws IOException {
+            chunks = new MappedByteBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+            for (int x = 0; x < chunks.length; x++) {
+                long start = (long)x << CHUNK_BITS;
+                chunks[x] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+                    Math.min(CHUNK_MASK + 1, size - start));
+                chunks[x].order(IndexSink.ORDER);
+            }
+        }
+
+        byte getByte(long position) {
+            return chunks[(int)(position >>> CHUNK_BITS)].get((int)(position & CHUNK_MASK));
+        }
+
+        int getInt(long position) {
+            return chunks[(int)(position >>> CHUNK_BITS)].getInt((int)(position & CHUNK_MASK));
+        }
+
+        long getLong(long position) {
+            return chunks[(int)(position >>> CHUNK_BITS)].getLong((int)(position & CHUNK_MASK));
+        }
+    }
+
+    private IndexFile(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(IndexSink.HEADER_SIZE).order(IndexSink.ORDER);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("The index is too short.");
+            }
+        }
+        header.flip();
+        if ((header.getInt() != IndexSink.MAGIC) || (header.getInt() != IndexSink.VERSION)) {
+            throw new IOException("Not an index.");
+        }
+        count = header.getLong();
+        directoryCount = header.getLong();
+        long[] offsets = new long[IndexSink.SECTIONS + 1];
+        for (int x = 0; x < IndexSink.SECTIONS; x++) {
+            offsets[x] = header.getLong();
+        }
+        offsets[IndexSink.SECTIONS] = channel.size();
+        for (int x = 0; x < IndexSink.SECTIONS; x++) {
+            sections[x] = new Section(channel, offsets[x], offsets[x + 1] - offsets[x]);
+        }
+    }
+
+    /**
+     * Maps the index.  The mapping stays valid after the file is closed.
+     */
+    static IndexFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new IndexFile(channel);
+        }
+    }
+
+    /**
+     * The number of entries.
+     */
+    long size() {
+        return count;
+    }
+
+    /**
+     * The number of directories.
+     */
+    long directoryCount() {
+        return directoryCount;
+    }
+
+    FileTreeWalker.EventType type(long entry) {
+        return TYPES[sections[IndexSink.TYPES].getByte(entry)];
+    }
+
+    long fileSize(long entry) {
+        return sections[IndexSink.SIZES].getLong(entry * 8);
+    }
+
+    /**
+     * The modification time in milliseconds.
+     */
+    long lastModified(long entry) {
+        return sections[IndexSink.MTIMES].getLong(entry * 8);
+    }
+
+    /**
+     * The number of the directory holding the entry, or -1 if its name is a
+     * whole path.
+     */
+    int parent(long entry) {
+        return sections[IndexSink.PARENTS].getInt(entry * 4);
+    }
+
+    /**
+     * The entry number of a directory.
+     */
+    long directory(int directory) {
+        return sections[IndexSink.DIRECTORIES].getLong((long)directory * 8);
+    }
+
+    /**
+     * The name of the entry, or its whole path when it has no parent.
+     */
+    String name(long entry) {
+        Section ends = sections[IndexSink.NAME_ENDS];
+        long start = ends.getLong(entry * 8);
+        byte[] bytes = new byte[(int)(ends.getLong((entry + 1) * 8) - start)];
+        Section names = sections[IndexSink.NAMES];
+        for (int x = 0; x < bytes.length; x++) {
+            bytes[x] = names.getByte(start + x);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The path of the entry, made from the names of its directories.
+     */
+    String path(long entry) {
+        StringBuilder path = new StringBuilder(name(entry));
+        int parent = parent(entry);
+        while (parent >= 0) {
+            long dir = directory(parent);
+            String name = name(dir);
+            if (!name.endsWith(SEPARATOR)) {
+                path.insert(0, SEPARATOR);
+            }
+            path.insert(0, name);
+            parent = parent(dir);
+        }
+        return path.toString();
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 1) {
+            System.out.println("\n\n\tUsage:\n\tjava IndexFile index\n\n");
+            return;
+        }
+        IndexFile index = open(FileSystems.getDefault().getPath(args[0]));
+        StringBuilder line = new StringBuilder();
+        for (long x = 0; x < index.size(); x++) {
+            line.setLength(0);
+            line.append(index.type(x)).append('\t').append(index.fileSize(x)).append('\t')
+                .append(index.lastModified(x)).append('\t').append(index.path(x));
+            System.out.println(line);
+        }
+        System.out.println("Entries:  " + index.size() + ", directories:  " + index.directoryCount());
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ *  IndexSink: A java class to write the events of a file tree walk to a binary index.
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sink writing the entries of a walk to an index file which
+ * {@code IndexFile} reads back through memory mapping, so a tool can look up
+ * millions of entries without parsing the printed lines.  Each entry is kept
+ * once, a directory the walk prints twice included, and its path is stored
+ * as its name after the number of the directory holding it.  The index holds
+ * a column for each of:
+ * 1. The number of the directory holding the entry, or -1 when the name is
+ *    a whole path, as for the start of the walk.
+ * 2. The type of the event.
+ * 3. The size from the entry's attributes.
+ * 4. The modification time in milliseconds.
+ * 5. The offset of the end of each name in the names.
+ * 6. The names in UTF-8.
+ * 7. The entry number of each directory.
+ * The columns are written as the events arrive to temporary files beside the
+ * index, which are copied after a header into a new index beside the old
+ * one when the walk is over, and it is moved over the old one.  A walk
+ * which does not complete leaves the old index alone.  A sink writes the
+ * index of a single walk.
+ */
+class IndexSink implements EventSink {
+    static final int MAGIC = 0x57494458;
+    static final int VERSION = 1;
+    static final int PARENTS = 0;
+    static final int TYPES = 1;
+    static final int SIZES = 2;
+    static final int MTIMES = 3;
+    static final int NAME_ENDS = 4;
+    static final int NAMES = 5;
+    static final int DIRECTORIES = 6;
+    static final int SECTIONS = 7;
+    // The magic number, version, entry and directory counts and the offset of each section.
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + (8 * SECTIONS);
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final Path temp;
+    private final Column[] columns = new Column[SECTIONS];
+    private final Map<Path, Integer> directoryNumbers = new HashMap<Path, Integer>();
+    private long count = 0;
+    private long nameEnd = 0;
+
+    /**
+     * A column written through a buffer to a temporary file, which is
+     * deleted when it is closed.
+     */
+    private static class Column {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ORDER);
+
+        Column(Path temp) throws IOException {
+            channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        void room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void putByte(byte value) throws IOException {
+            room(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            room(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            room(8);
+            buffer.putLong(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                room(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Copies the column to the end of the index.
+         */
+        long copyTo(FileChannel out) throws IOException {
+            flush();
+            long size = channel.size();
+            long done = 0;
+            while (done < size) {
+                done += channel.transferTo(done, size - done, out);
+            }
+            return size;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+    IndexSink(Path file) throws IOException {
+        this.file = file;
+        this.temp = file.resolveSibling(file.getFileName().toString() + ".tmp");
+        Path dir = file.toAbsolutePath().getParent();
+        try {
+            for (int x = 0; x < SECTIONS; x++) {
+                columns[x] = new Column(Files.createTempFile(dir, file.getFileName().toString() + ".", ".column"));
+            }
+            columns[NAME_ENDS].putLong(0);
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        Path path = ev.file();
+        boolean directory = (ev.type() == FileTreeWalker.EventType.DIRECTORY);
+        if (directory && directoryNumbers.containsKey(path)) {
+            // The directory was already kept as an entry of its parent.
+            return FileVisitResult.CONTINUE;
+        }
+        Integer parent = (path.getParent() == null) ? null : directoryNumbers.get(path.getParent());
+        String name = (parent == null) ? path.toString() : path.getFileName().toString();
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        BasicFileAttributes attrs = ev.attributes();
+        try {
+            columns[PARENTS].putInt((parent == null) ? -1 : parent.intValue());
+            columns[TYPES].putByte((byte)ev.type().ordinal());
+            columns[SIZES].putLong((attrs == null) ? 0 : attrs.size());
+            columns[MTIMES].putLong((attrs == null) ? 0 : attrs.lastModifiedTime().toMillis());
+            columns[NAMES].put(bytes);
+            nameEnd += bytes.length;
+            columns[NAME_ENDS].putLong(nameEnd);
+            if (directory) {
+                directoryNumbers.put(path, directoryNumbers.size());
+                columns[DIRECTORIES].putLong(count);
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        count++;
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Writes the header and copies the columns into the index, each
+     * starting on an eight byte boundary so the reader's longs are aligned.
+     */
+    @Override
+    public void finish() {
+        try {
+            write();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Drops the columns, leaving the index of the last complete walk.
+     */
+    @Override
+    public void abort() {
+        close();
+    }
+
+    private void write() throws IOException {
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            long[] offsets = new long[SECTIONS];
+            out.position(HEADER_SIZE);
+            ByteBuffer padding = ByteBuffer.allocate(8);
+            for (int x = 0; x < SECTIONS; x++) {
+                offsets[x] = out.position();
+                long end = offsets[x] + columns[x].copyTo(out);
+                out.position(end);
+                padding.clear().limit((int)((8 - (end % 8)) % 8));
+                while (padding.hasRemaining()) {
+                    out.write(padding);
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(directoryNumbers.size());
+            for (long offset : offsets) {
+                header.putLong(offset);
+            }
+            header.flip();
+            out.position(0);
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+        }
+    }
+
+    /**
+     * The number of entries kept.
+     */
+    long count() {
+        return count;
+    }
+
+    private void close() {
+        for (Column column : columns) {
+            if (column != null) {
+                column.close();
+            }
+        }
+    }
+}
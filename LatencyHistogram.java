@@ -0,0 +1,73 @@
+/**
+ *  LatencyHistogram: A java class to count how long the calls of a file tree walk take.
+ *
+ */
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with a bucket for each power of
+ * two.  Recording is a few instructions and an uncontended add, so it may be
+ * done by every thread of a walk on every call.  Percentiles are given as
+ * the upper bound of their bucket, so within a factor of two.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+
+    LatencyHistogram() {
+        for (int x = 0; x < BUCKETS; x++) {
+            buckets[x] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        buckets[BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(1, nanos))].increment();
+        total.add(nanos);
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * The mean latency, or zero when nothing has been recorded.
+     */
+    double mean() {
+        long count = count();
+        return (count == 0) ? 0.0 : (double)total.sum() / count;
+    }
+
+    /**
+     * The latency under which the given fraction of the calls fell.
+     */
+    long percentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int x = 0; x < BUCKETS; x++) {
+            counts[x] = buckets[x].sum();
+            count += counts[x];
+        }
+        long wanted = (long)Math.ceil(fraction * count);
+        long seen = 0;
+        for (int x = 0; x < BUCKETS; x++) {
+            seen += counts[x];
+            if ((seen >= wanted) && (seen > 0)) {
+                return (x == BUCKETS - 1) ? Long.MAX_VALUE : (1L << (x + 1));
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d calls, mean %.1fus, p50 %.1fus, p99 %.1fus", count(), mean() / 1000.0,
+            percentile(0.5) / 1000.0, percentile(0.99) / 1000.0);
+    }
+}
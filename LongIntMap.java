@@ -0,0 +1,122 @@
+/**
+ *  LongIntMap: A java class to map long keys to int values without boxing them.
+ *
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code long} keys to {@code int} values of zero or more, held
+ * in two open addressed arrays, so unlike a {@code HashMap} no object is
+ * allocated for each key added.  It is not thread safe.
+ */
+class LongIntMap {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EMPTY = -1;
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] values = newValues(INITIAL_CAPACITY);
+    private int size = 0;
+
+    private static int[] newValues(int capacity) {
+        int[] values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        return values;
+    }
+
+    /**
+     * Returns the value of the key, or -1 if it is not in the map.
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        int x = mix(key) & mask;
+        while (values[x] != EMPTY) {
+            if (keys[x] == key) {
+                return values[x];
+            }
+            x = (x + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Sets the value of the key, returning its previous value or -1.
+     */
+    int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("The value cannot be negative:  " + value);
+        }
+        // Keep the table at most half full.
+        if (size * 2 >= keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int x = mix(key) & mask;
+        while (values[x] != EMPTY) {
+            if (keys[x] == key) {
+                int previous = values[x];
+                values[x] = value;
+                return previous;
+            }
+            x = (x + 1) & mask;
+        }
+        keys[x] = key;
+        values[x] = value;
+        size++;
+        return EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the keys in the map, in no particular order.
+     */
+    long[] keys() {
+        long[] present = new long[size];
+        int count = 0;
+        for (int x = 0; x < keys.length; x++) {
+            if (values[x] != EMPTY) {
+                present[count++] = keys[x];
+            }
+        }
+        return present;
+    }
+
+    void clear() {
+        keys = new long[INITIAL_CAPACITY];
+        values = newValues(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    /**
+     * Moves the entries to a table of the given size, a power of two.
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = newValues(capacity);
+        int mask = capacity - 1;
+        for (int y = 0; y < oldKeys.length; y++) {
+            if (oldValues[y] != EMPTY) {
+                int x = mix(oldKeys[y]) & mask;
+                while (values[x] != EMPTY) {
+                    x = (x + 1) & mask;
+                }
+                keys[x] = oldKeys[y];
+                values[x] = oldValues[y];
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a key, as sizes and times often differ only in
+     * their low bits or share them.
+     */
+    private static int mix(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int)(key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *  Manifest: A java class to read the content hashes of the files of a file tree walk.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hashes of the regular files found by a walk, as written by
+ * {@code HashSink}.  The manifest is a text file with a line per file of
+ * its SHA-256 and CRC32C in hex, its size, its modification time in
+ * nanoseconds and its path, separated by tabs.  A backslash, tab or new
+ * line in a path is written as {@code \\}, {@code \t} or {@code \n}.  Lines
+ * starting with {@code #} are comments.
+ */
+class Manifest {
+    static final String HEADER = "# sha256\tcrc32c\tsize\tmtime\tpath";
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * What the manifest holds for a single file.
+     */
+    static class Entry {
+        final String sha256;
+        final String crc32c;
+        final long size;
+        final long mtime;
+
+        Entry(String sha256, String crc32c, long size, long mtime) {
+            this.sha256 = sha256;
+            this.crc32c = crc32c;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        /**
+         * Whether the file still has the size and modification time it was
+         * hashed with, so its hashes may be used again.
+         */
+        boolean unchanged(long size, long mtime) {
+            return (this.size == size) && (this.mtime == mtime);
+        }
+    }
+
+    /**
+     * Returns what the manifest holds for the file, or {@code null}.
+     */
+    Entry get(Path file) {
+        return entries.get(file.toString());
+    }
+
+    /**
+     * The number of files in the manifest.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * The line of the manifest for a file, without the new line.
+     */
+    static String line(Path file, Entry entry) {
+        StringBuilder line = new StringBuilder(100 + file.toString().length());
+        line.append(entry.sha256).append('\t').append(entry.crc32c).append('\t')
+            .append(entry.size).append('\t').append(entry.mtime).append('\t');
+        String path = file.toString();
+        for (int x = 0; x < path.length(); x++) {
+            char c = path.charAt(x);
+            if (c == '\\') {
+                line.append("\\\\");
+            } else if (c == '\t') {
+                line.append("\\t");
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else {
+                line.append(c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String unescape(String path) {
+        if (path.indexOf('\\') < 0) {
+            return path;
+        }
+        StringBuilder text = new StringBuilder(path.length());
+        for (int x = 0; x < path.length(); x++) {
+            char c = path.charAt(x);
+            if ((c == '\\') && (x + 1 < path.length())) {
+                x++;
+                c = path.charAt(x);
+                text.append((c == 't') ? '\t' : (c == 'n') ? '\n' : c);
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads a manifest, or returns an empty one if the file does not exist.
+     */
+    static Manifest load(Path file) throws IOException {
+        Manifest manifest = new Manifest();
+        if (!Files.exists(file)) {
+            return manifest;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = null;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    throw new IOException("Line " + number + " of the manifest " + file.toString() + " is damaged.");
+                }
+                try {
+                    manifest.entries.put(unescape(fields[4]), new Entry(fields[0], fields[1],
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("Line " + number + " of the manifest " + file.toString() + " is damaged.");
+                }
+            }
+        }
+        return manifest;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ *  NullSink: A java class to discard the events of a file tree walk.
+ *
+ */
+
+
+import java.nio.file.FileVisitResult;
+
+/**
+ * A sink that only counts the events it receives, for measuring the cost of
+ * the walk without the cost of any output.
+ */
+class NullSink implements EventSink {
+    private long count = 0;
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        count++;
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * The number of events received.
+     */
+    long count() {
+        return count;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ *  OpenStreamsCheck: A java class to check that a very wide tree walks under a low limit on open files.
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import com.sun.management.UnixOperatingSystemMXBean;
+
+/**
+ * Makes a directory holding a few thousand sub directories, each with one
+ * file, and walks it in every mode, checking that each walk reports every
+ * entry and no directory fails to open.  It is meant to be run under a low
+ * limit on open files, well below the number of sub directories, which a
+ * walk holding a stream open for every directory waiting would exceed.
+ * The walks with a cap on their open streams are also checked never to
+ * have held more open than it allows:
+ *
+ *    ulimit -n 64; java OpenStreamsCheck [--directories n] [--threads n]
+ *
+ * It exits with status 1 if any walk falls short.
+ */
+public class OpenStreamsCheck {
+    private static final String USAGE = "\n\n\tUsage:\n\tjava OpenStreamsCheck [--directories n] [--threads n]\n\n";
+
+    public static void main(String args[]) throws IOException {
+        int directories = 3000;
+        int threads = 64;
+        try {
+            for (int x = 0; x < args.length; x++) {
+                if (x + 1 >= args.length) {
+                    System.out.println(USAGE);
+                    return;
+                } else if (args[x].compareTo("--directories") == 0) {
+                    directories = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--threads") == 0) {
+                    threads = Integer.parseInt(args[++x]);
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println(USAGE);
+            return;
+        }
+        // The default cap of a virtual thread walk is at most half the open file limit.
+        long virtualStreams = threads;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            long limit = ((UnixOperatingSystemMXBean)os).getMaxFileDescriptorCount();
+            System.out.println("Open file limit:  " + limit);
+            virtualStreams = Math.max(1, Math.min(threads, limit / 2));
+        }
+        TreeGenerator generator = new TreeGenerator(1, directories, 1, 0.0, 1);
+        Path tree = generator.generate(Files.createTempDirectory("openstreamscheck"));
+        System.out.println(generator.toString());
+        // The start, each sub directory when it is listed and when it is read, and its file.
+        long expected = 1 + 3L * directories + 1;
+        int failures = 0;
+        try {
+            // A walk on the calling thread holds one stream, or one per level for a depth first walk.
+            failures += check("stack", tree, walker(), expected, 1);
+            FileTreeWalker depthFirst = walker();
+            depthFirst.setTraversal(FileTreeWalker.Traversal.DEPTH_FIRST);
+            failures += check("depth first", tree, depthFirst, expected, 2);
+            FileTreeWalker breadthFirst = walker();
+            breadthFirst.setTraversal(FileTreeWalker.Traversal.BREADTH_FIRST);
+            failures += check("breadth first", tree, breadthFirst, expected, 1);
+            FileTreeWalker parallel = walker();
+            parallel.setParallelism(threads);
+            parallel.setMaxOpenStreams(8);
+            failures += check("parallel, threads " + threads + ", 8 streams", tree, parallel, expected, 8);
+            FileTreeWalker virtual = walker();
+            virtual.setFanOut(threads);
+            failures += check("virtual threads " + threads + ", default streams", tree, virtual, expected,
+                virtualStreams);
+            // The stream reports each sub directory once, as it descends into it.
+            failures += checkStream(tree, expected - directories);
+        } finally {
+            TreeGenerator.delete(tree);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " walks failed.");
+            System.exit(1);
+        }
+        System.out.println("All walks listed every entry.");
+    }
+
+    private static FileTreeWalker walker() {
+        return new FileTreeWalker(Integer.MAX_VALUE, false, false, false);
+    }
+
+    /**
+     * Walks the tree into a {@code NullSink}, returning 1 if the walk missed
+     * entries, reported a problem or held more than {@code maxStreams}
+     * streams open at once.
+     */
+    private static int check(String name, Path tree, FileTreeWalker walker, long expected, long maxStreams) {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        NullSink sink = new NullSink();
+        walker.setSink(sink);
+        walker.setMessages(new PrintStream(messages, true));
+        walker.setMetrics(new WalkMetrics());
+        walker.walk(tree);
+        return result(name, sink.count(), expected, messages, walker.metrics(), maxStreams);
+    }
+
+    /**
+     * Walks the tree through the lazy stream, which holds a stream open for
+     * each directory above the current one.
+     */
+    private static int checkStream(Path tree, long expected) {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        FileTreeWalker walker = walker();
+        walker.setMessages(new PrintStream(messages, true));
+        walker.setMetrics(new WalkMetrics());
+        long count;
+        try (Stream<FileTreeWalker.Event> events = walker.stream(tree)) {
+            count = events.count();
+        }
+        // The tree is two levels deep.
+        return result("lazy stream", count, expected, messages, walker.metrics(), 2);
+    }
+
+    private static int result(String name, long count, long expected, ByteArrayOutputStream messages,
+        WalkMetrics metrics, long maxStreams) {
+        int problems = 0;
+        for (String line : messages.toString().split("\n")) {
+            if (!line.isEmpty() && !line.startsWith("Currently listing root directory")) {
+                problems++;
+            }
+        }
+        long streams = metrics.getOpenStreamsHighWaterMark();
+        boolean passed = (count == expected) && (problems == 0) && (streams <= maxStreams);
+        System.out.println(String.format("%-45s %8d of %8d events, %5d problems, %3d of %3d streams  %s", name,
+            count, expected, problems, streams, maxStreams, passed ? "ok" : "FAILED"));
+        return passed ? 0 : 1;
+    }
+}
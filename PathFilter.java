@@ -0,0 +1,206 @@
+/**
+ *  PathFilter: A java class to choose the entries a file tree walk reports.
+ *
+ */
+
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Include and exclude rules for a walk.  A rule is a glob, or a regular
+ * expression when it starts with {@code regex:}, as taken by
+ * {@code FileSystem.getPathMatcher}.  A rule holding a separator is matched
+ * against the whole path of an entry, any other against its name.
+ *
+ * Excluded entries are dropped as the directory is read, before they are
+ * stat'ed, so an excluded directory is never opened.  When there are include
+ * rules only the files matching one of them are reported, directories are
+ * still walked.  Every rule is compiled once, and a glob naming a single
+ * file, like {@code .git}, is looked up in a set of names, so the name of
+ * an entry is made into a string once however many such rules there are.
+ * The names are compared as strings, so they also match the entries of the
+ * archives a walk goes into, which are paths of another file system.
+ */
+class PathFilter implements DirectoryStream.Filter<Path> {
+    private static final String GLOB_CHARACTERS = "*?[]{}\\";
+    private final FileSystem fileSystem;
+    private final Rules excludes = new Rules();
+    private final Rules includes = new Rules();
+
+    /**
+     * A rule compiled once, also used by {@code TreeModel.glob}.  A glob
+     * naming a single file is kept as the name, any other rule as a matcher
+     * of the name or, when it holds a separator, of the whole path.
+     */
+    static class Rule {
+        private final String name;
+        private final PathMatcher matcher;
+        private final boolean wholePath;
+
+        /**
+         * Compiles the rule, throwing an {@code IllegalArgumentException} if
+         * it is not a valid glob or regular expression.
+         */
+        Rule(FileSystem fileSystem, String rule) {
+            boolean regex = rule.startsWith("regex:");
+            String pattern = rule;
+            if (rule.startsWith("glob:")) {
+                pattern = rule.substring(5);
+            } else if (regex) {
+                pattern = rule.substring(6);
+            }
+            wholePath = pattern.contains(fileSystem.getSeparator()) || pattern.contains("/");
+            if (!regex && !wholePath && isLiteral(pattern)) {
+                name = pattern;
+                matcher = null;
+            } else {
+                name = null;
+                matcher = fileSystem.getPathMatcher(regex ? rule : "glob:" + pattern);
+            }
+        }
+
+        /**
+         * The name the rule matches, or {@code null} when it is matched by
+         * the matcher.
+         */
+        String name() {
+            return name;
+        }
+
+        PathMatcher matcher() {
+            return matcher;
+        }
+
+        /**
+         * Whether the matcher is matched against the whole path rather than
+         * the name.
+         */
+        boolean wholePath() {
+            return wholePath;
+        }
+    }
+
+    /**
+     * The rules of one kind, split by what they are matched against.
+     */
+    private static class Rules {
+        // Kept as strings, as a path only equals a path of its own file system.
+        private final Set<String> names = new HashSet<String>();
+        private final List<PathMatcher> nameMatchers = new ArrayList<PathMatcher>();
+        private final List<PathMatcher> pathMatchers = new ArrayList<PathMatcher>();
+
+        boolean isEmpty() {
+            return names.isEmpty() && nameMatchers.isEmpty() && pathMatchers.isEmpty();
+        }
+
+        boolean matches(Path file) {
+            Path name = file.getFileName();
+            if (name != null) {
+                if (!names.isEmpty() && names.contains(name.toString())) {
+                    return true;
+                }
+                for (PathMatcher matcher : nameMatchers) {
+                    if (matcher.matches(name)) {
+                        return true;
+                    }
+                }
+            }
+            for (PathMatcher matcher : pathMatchers) {
+                if (matcher.matches(file)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    PathFilter() {
+        this(FileSystems.getDefault());
+    }
+
+    /**
+     * Rules for the paths of the given file system.
+     */
+    PathFilter(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Drops the entries matching the rule from the walk.
+     */
+    void exclude(String rule) {
+        add(excludes, rule);
+    }
+
+    /**
+     * Reports only the files matching this rule or another include rule.
+     */
+    void include(String rule) {
+        add(includes, rule);
+    }
+
+    /**
+     * Compiles the rule, throwing an {@code IllegalArgumentException} if it
+     * is not a valid glob or regular expression.
+     */
+    private void add(Rules rules, String rule) {
+        Rule compiled = new Rule(fileSystem, rule);
+        if (compiled.name() != null) {
+            rules.names.add(compiled.name());
+        } else if (compiled.wholePath()) {
+            rules.pathMatchers.add(compiled.matcher());
+        } else {
+            rules.nameMatchers.add(compiled.matcher());
+        }
+    }
+
+    private static boolean isLiteral(String pattern) {
+        for (int x = 0; x < pattern.length(); x++) {
+            if (GLOB_CHARACTERS.indexOf(pattern.charAt(x)) >= 0) {
+                return false;
+            }
+        }
+        return !pattern.isEmpty();
+    }
+
+    /**
+     * Whether the entry is dropped from the walk.
+     */
+    boolean excludes(Path entry) {
+        return excludes.matches(entry);
+    }
+
+    /**
+     * Whether the event is reported.  Directories always are, so the files
+     * under them can be.
+     */
+    boolean includes(FileTreeWalker.Event ev) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+        switch (ev.type()) {
+            case DIRECTORY :
+            case START_DIRECTORY :
+            case LOOP :
+                return true;
+            default:
+                return includes.matches(ev.file());
+        }
+    }
+
+    /**
+     * Accepts the entries of a directory stream which are not excluded.
+     */
+    @Override
+    public boolean accept(Path entry) {
+        return !excludes.matches(entry);
+    }
+}
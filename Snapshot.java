@@ -0,0 +1,195 @@
+/**
+ *  Snapshot: A java class to keep the state of a file tree between walks.
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The state of a file tree after a walk: for each directory walked its file
+ * key, its modification time and the name, type, size and modification
+ * time of each of its entries.  A walk given a snapshot only reads the
+ * directories whose key or modification time has changed, reports the
+ * entries added, removed and changed since the snapshot was taken and then
+ * brings the snapshot up to date.
+ *
+ * The snapshot is saved as a gzipped stream of records, one per directory.
+ */
+class Snapshot {
+    private static final int MAGIC = 0x57534e50;
+    private static final int VERSION = 1;
+
+    /**
+     * What a snapshot holds for a single directory.
+     */
+    static class Directory {
+        final String key;
+        final long mtime;
+        final String[] names;
+        final byte[] types;
+        final long[] sizes;
+        final long[] mtimes;
+
+        Directory(String key, long mtime, int entries) {
+            this.key = key;
+            this.mtime = mtime;
+            this.names = new String[entries];
+            this.types = new byte[entries];
+            this.sizes = new long[entries];
+            this.mtimes = new long[entries];
+        }
+
+        /**
+         * Whether the directory still has the same key and modification
+         * time, so its entries have not been added to or removed.
+         */
+        boolean unchanged(BasicFileAttributes attrs) {
+            return key.equals(keyOf(attrs)) && (mtime == mtimeOf(attrs));
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        /**
+         * Returns a copy which may be changed without changing this one.
+         */
+        Directory copy() {
+            Directory copy = new Directory(key, mtime, names.length);
+            System.arraycopy(names, 0, copy.names, 0, names.length);
+            System.arraycopy(types, 0, copy.types, 0, names.length);
+            System.arraycopy(sizes, 0, copy.sizes, 0, names.length);
+            System.arraycopy(mtimes, 0, copy.mtimes, 0, names.length);
+            return copy;
+        }
+    }
+
+    private Map<String, Directory> directories = new HashMap<String, Directory>();
+
+    /**
+     * The file key of a file as it is kept in a snapshot.
+     */
+    static String keyOf(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return (key == null) ? "" : key.toString();
+    }
+
+    /**
+     * The modification time of a file as it is kept in a snapshot.
+     */
+    static long mtimeOf(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns what the snapshot holds for the directory, or {@code null}.
+     */
+    Directory get(Path dir) {
+        return directories.get(dir.toString());
+    }
+
+    void put(Path dir, Directory directory) {
+        directories.put(dir.toString(), directory);
+    }
+
+    void remove(Path dir) {
+        directories.remove(dir.toString());
+    }
+
+    /**
+     * The paths of the directories in the snapshot.
+     */
+    Set<String> paths() {
+        return Collections.unmodifiableSet(directories.keySet());
+    }
+
+    /**
+     * The number of directories in the snapshot.
+     */
+    int size() {
+        return directories.size();
+    }
+
+    /**
+     * Takes on the state of another snapshot.
+     */
+    void replaceWith(Snapshot other) {
+        this.directories = other.directories;
+    }
+
+    /**
+     * Reads a saved snapshot, or returns an empty one if the file does not
+     * exist.
+     */
+    static Snapshot load(Path file) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        if (!Files.exists(file)) {
+            return snapshot;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file))))) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Not a snapshot:  " + file.toString());
+            }
+            int count = in.readInt();
+            for (int x = 0; x < count; x++) {
+                String path = in.readUTF();
+                String key = in.readUTF();
+                long mtime = in.readLong();
+                Directory directory = new Directory(key, mtime, in.readInt());
+                for (int y = 0; y < directory.size(); y++) {
+                    directory.names[y] = in.readUTF();
+                    directory.types[y] = in.readByte();
+                    directory.sizes[y] = in.readLong();
+                    directory.mtimes[y] = in.readLong();
+                }
+                snapshot.directories.put(path, directory);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Saves the snapshot.  It is written beside the file and then moved over
+     * it, so a walk that dies while saving leaves the old snapshot intact.
+     */
+    void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName().toString() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(Files.newOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(directories.size());
+            for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+                Directory directory = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(directory.key);
+                out.writeLong(directory.mtime);
+                out.writeInt(directory.size());
+                for (int y = 0; y < directory.size(); y++) {
+                    out.writeUTF(directory.names[y]);
+                    out.writeByte(directory.types[y]);
+                    out.writeLong(directory.sizes[y]);
+                    out.writeLong(directory.mtimes[y]);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ *  SpillQueue: A java class to hold a first in first out queue too large for memory.
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * A first in first out queue holding at most a given number of items in
+ * memory.  Once that many are held, the items added are written to the end
+ * of a temporary file instead, and are read back in order when those in
+ * memory have been taken.  The items spilled are written and read in whole
+ * buffers, so a queue much larger than memory costs sequential I/O only.
+ * Once every item spilled has been read back the file is deleted.
+ *
+ * The I/O errors of the file are thrown as {@code UncheckedIOException}.
+ */
+class SpillQueue<T> implements Closeable {
+    private final ArrayDeque<T> memory = new ArrayDeque<T>();
+    private final int memoryLimit;
+    private final Path directory;
+    private final Codec<T> codec;
+    private Path file = null;
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+    private long written = 0;
+    private long read = 0;
+    private long spilledTotal = 0;
+
+    /**
+     * Writes an item to the file and reads it back.
+     */
+    interface Codec<T> {
+        void write(DataOutputStream out, T item) throws IOException;
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Holds up to {@code memoryLimit} items in memory, spilling the rest to
+     * a file in the given directory.
+     */
+    SpillQueue(int memoryLimit, Path directory, Codec<T> codec) {
+        if (memoryLimit < 1) {
+            throw new IllegalArgumentException("The memory limit must be at least one:  " + memoryLimit);
+        }
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+        this.codec = codec;
+    }
+
+    /**
+     * Adds an item to the end of the queue.
+     */
+    void add(T item) {
+        if ((written == read) && (memory.size() < memoryLimit)) {
+            memory.addLast(item);
+            return;
+        }
+        // Once anything is in the file, later items must follow it there.
+        try {
+            if (out == null) {
+                file = Files.createTempFile(directory, "walk", ".queue");
+                out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.APPEND)));
+            }
+            codec.write(out, item);
+            written++;
+            spilledTotal++;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Takes the item at the head of the queue, or returns {@code null} if
+     * the queue is empty.
+     */
+    T poll() {
+        if (memory.isEmpty() && (read < written)) {
+            refill();
+        }
+        return memory.pollFirst();
+    }
+
+    /**
+     * Reads the next items spilled back into memory, deleting the file once
+     * they have all been read.
+     */
+    private void refill() {
+        try {
+            out.flush();
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            }
+            while ((read < written) && (memory.size() < memoryLimit)) {
+                memory.addLast(codec.read(in));
+                read++;
+            }
+            if (read == written) {
+                deleteFile();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    int size() {
+        return memory.size() + (int)Math.min(Integer.MAX_VALUE - memory.size(), written - read);
+    }
+
+    boolean isEmpty() {
+        return memory.isEmpty() && (read == written);
+    }
+
+    /**
+     * The number of items written to the file since the queue was made.
+     */
+    long spilled() {
+        return spilledTotal;
+    }
+
+    /**
+     * Empties the queue and deletes its file.
+     */
+    void clear() {
+        memory.clear();
+        try {
+            deleteFile();
+        } catch (IOException ignore) { }
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    private void deleteFile() throws IOException {
+        written = 0;
+        read = 0;
+        if (file == null) {
+            return;
+        }
+        try {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        } finally {
+            in = null;
+            out = null;
+            Files.deleteIfExists(file);
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *  StatCountCheck: A java class to check that a file tree walk reads the attributes of each entry once.
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Makes a small tree and walks it in every mode, checking from the walker's
+ * {@code statCount} that the attributes of each entry were read from the
+ * file system exactly once.  A names only walk reads those of the entries
+ * it reports with attributes once, and stats each directory it lists once
+ * more for its link count, so it is checked to have made exactly one stat
+ * for each of those and none for the entries reported without attributes:
+ *
+ *    java StatCountCheck [--depth n] [--fanout n] [--files n]
+ *
+ * It exits with status 1 if any walk made more or fewer stats.
+ */
+public class StatCountCheck {
+    private static final String USAGE = "\n\n\tUsage:\n\tjava StatCountCheck [--depth n] [--fanout n] [--files n]\n\n";
+
+    public static void main(String args[]) throws IOException {
+        int depth = 3;
+        int fanout = 5;
+        int files = 10;
+        try {
+            for (int x = 0; x < args.length; x++) {
+                if (x + 1 >= args.length) {
+                    System.out.println(USAGE);
+                    return;
+                } else if (args[x].compareTo("--depth") == 0) {
+                    depth = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--fanout") == 0) {
+                    fanout = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--files") == 0) {
+                    files = Integer.parseInt(args[++x]);
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println(USAGE);
+            return;
+        }
+        TreeGenerator generator = new TreeGenerator(depth, fanout, files, 0.0, 1);
+        Path tree = generator.generate(Files.createTempDirectory("statcountcheck"));
+        System.out.println(generator.toString());
+        int failures = 0;
+        try {
+            failures += check("stack", tree, walker(), false);
+            FileTreeWalker depthFirst = walker();
+            depthFirst.setTraversal(FileTreeWalker.Traversal.DEPTH_FIRST);
+            failures += check("depth first", tree, depthFirst, false);
+            FileTreeWalker breadthFirst = walker();
+            breadthFirst.setTraversal(FileTreeWalker.Traversal.BREADTH_FIRST);
+            failures += check("breadth first", tree, breadthFirst, false);
+            FileTreeWalker parallel = walker();
+            parallel.setParallelism(4);
+            failures += check("parallel, threads 4", tree, parallel, false);
+            FileTreeWalker ordered = walker();
+            ordered.setParallelism(4);
+            ordered.setOrdered(true);
+            failures += check("parallel, threads 4, ordered", tree, ordered, false);
+            FileTreeWalker virtual = walker();
+            virtual.setFanOut(16);
+            failures += check("virtual threads 16", tree, virtual, false);
+            FileTreeWalker namesOnly = walker();
+            namesOnly.setNamesOnly(true);
+            failures += check("names only", tree, namesOnly, true);
+        } finally {
+            TreeGenerator.delete(tree);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " walks failed.");
+            System.exit(1);
+        }
+        System.out.println("Every walk read each entry once.");
+    }
+
+    private static FileTreeWalker walker() {
+        return new FileTreeWalker(Integer.MAX_VALUE, false, false, false);
+    }
+
+    /**
+     * Walks the tree and compares the stats made to the entries reported,
+     * returning 1 if they differ or the walk reported a problem.
+     */
+    private static int check(String name, Path tree, FileTreeWalker walker, boolean namesOnly) {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        CollectingSink sink = new CollectingSink();
+        walker.setSink(sink);
+        walker.setMessages(new PrintStream(messages, true));
+        walker.walk(tree);
+        // A directory is reported when found and again when read, stat'ed only once.
+        Set<Path> read = new HashSet<Path>();
+        Set<Path> directories = new HashSet<Path>();
+        for (FileTreeWalker.Event ev : sink.events()) {
+            if ((ev.type() != FileTreeWalker.EventType.START_DIRECTORY) && (ev.attributes() != null)) {
+                read.add(ev.file());
+                if (ev.attributes().isDirectory()) {
+                    directories.add(ev.file());
+                }
+            }
+        }
+        long expected = read.size() + (namesOnly ? directories.size() : 0);
+        int problems = 0;
+        for (String line : messages.toString().split("\n")) {
+            if (!line.isEmpty() && !line.startsWith("Currently listing root directory")) {
+                problems++;
+            }
+        }
+        long stats = walker.statCount();
+        boolean passed = (stats == expected) && (problems == 0);
+        System.out.println(String.format("%-35s %8d stats for %8d entries, %5d problems  %s", name, stats,
+            expected, problems, passed ? "ok" : "FAILED"));
+        return passed ? 0 : 1;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *  TextSink: A java class to write the events of a file tree walk as text.
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+
+/**
+ * A sink writing one line per event, in the same form the walker prints,
+ * through a large buffer which is only flushed when full and when the walk
+ * is over.
+ */
+class TextSink implements EventSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final Writer out;
+
+    TextSink(OutputStream out) {
+        this(new OutputStreamWriter(out));
+    }
+
+    TextSink(Writer out) {
+        this.out = new BufferedWriter(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public FileVisitResult accept(FileTreeWalker.Event ev) {
+        try {
+            switch (ev.type()) {
+                case ENTRY :
+                    out.write("Entry:  ");
+                    break;
+                case LINK :
+                    out.write("Link:  ");
+                    break;
+                case START_DIRECTORY :
+                    out.write("Start Directory Entry:  ");
+                    break;
+                case DIRECTORY :
+                    out.write("Directory Entry:  ");
+                    break;
+                case LOOP :
+                    out.write("Loop:  ");
+                    break;
+                case ADDED :
+                    out.write("Added:  ");
+                    break;
+                case REMOVED :
+                    out.write("Removed:  ");
+                    break;
+                case CHANGED :
+                    out.write("Changed:  ");
+                    break;
+                default:
+            }
+            out.write(ArchiveFileSystems.name(ev.file()));
+            out.write('\n');
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ *  TreeGenerator: A java class to create synthetic file trees for benchmarks.
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates a synthetic file tree.  The tree is the same every time for the
+ * same options and seed:
+ * 1. Every directory above the given depth holds {@code fanout} sub directories.
+ * 2. Every directory holds {@code files} files of {@code fileSize} bytes.
+ * 3. Each entry is followed by a symbolic link with probability
+ *    {@code linkDensity}, pointing to an entry created earlier.
+ * The tree may be created under any path, including one on an in memory
+ * file system.
+ *
+ *    java TreeGenerator directory [--depth n] [--fanout n] [--files n]
+ *        [--filesize n] [--links fraction] [--seed n]
+ */
+public class TreeGenerator {
+    private final int depth;
+    private final int fanout;
+    private final int files;
+    private final double linkDensity;
+    private final long seed;
+    private int fileSize = 0;
+    private Random random;
+    private List<Path> created;
+    private long dirCount;
+    private long fileCount;
+    private long linkCount;
+
+    TreeGenerator(int depth, int fanout, int files, double linkDensity, long seed) {
+        if ((depth < 0) || (fanout < 0) || (files < 0) || (linkDensity < 0.0) || (linkDensity > 1.0)) {
+            throw new IllegalArgumentException("Invalid tree shape.");
+        }
+        this.depth = depth;
+        this.fanout = fanout;
+        this.files = files;
+        this.linkDensity = linkDensity;
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the size of the files, which are filled with bytes drawn from the
+     * seed.  Zero (the default) creates empty files.
+     */
+    void setFileSize(int fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length < 1) {
+            System.out.println("\n\n\tUsage:\n\tjava TreeGenerator directory [--depth n] [--fanout n] [--files n]"
+                + " [--filesize n] [--links fraction] [--seed n]\n\n");
+            return;
+        }
+        int depth = 5;
+        int fanout = 4;
+        int files = 10;
+        int fileSize = 0;
+        double links = 0.0;
+        long seed = 1;
+        for (int x = 1; x + 1 < args.length; x += 2) {
+            if (args[x].compareTo("--depth") == 0) {
+                depth = Integer.parseInt(args[x + 1]);
+            } else if (args[x].compareTo("--fanout") == 0) {
+                fanout = Integer.parseInt(args[x + 1]);
+            } else if (args[x].compareTo("--files") == 0) {
+                files = Integer.parseInt(args[x + 1]);
+            } else if (args[x].compareTo("--filesize") == 0) {
+                fileSize = Integer.parseInt(args[x + 1]);
+            } else if (args[x].compareTo("--links") == 0) {
+                links = Double.parseDouble(args[x + 1]);
+            } else if (args[x].compareTo("--seed") == 0) {
+                seed = Long.parseLong(args[x + 1]);
+            }
+        }
+        TreeGenerator generator = new TreeGenerator(depth, fanout, files, links, seed);
+        generator.setFileSize(fileSize);
+        generator.generate(FileSystems.getDefault().getPath(args[0]));
+        System.out.println(generator.toString());
+    }
+
+    /**
+     * Creates the tree under the given directory, which is created if need
+     * be.
+     */
+    Path generate(Path root) throws IOException {
+        random = new Random(seed);
+        created = new ArrayList<Path>();
+        dirCount = 0;
+        fileCount = 0;
+        linkCount = 0;
+        Files.createDirectories(root);
+        dirCount++;
+        fill(root, 0);
+        created = null;
+        return root;
+    }
+
+    /**
+     * Creates the files, links and sub directories of one directory.
+     */
+    private void fill(Path dir, int level) throws IOException {
+        byte[] data = new byte[fileSize];
+        for (int x = 0; x < files; x++) {
+            Path file = dir.resolve("file" + x);
+            random.nextBytes(data);
+            Files.write(file, data);
+            fileCount++;
+            added(dir, file);
+        }
+        if (level >= depth) {
+            return;
+        }
+        for (int x = 0; x < fanout; x++) {
+            Path sub = dir.resolve("dir" + x);
+            Files.createDirectory(sub);
+            dirCount++;
+            added(dir, sub);
+            fill(sub, level + 1);
+        }
+    }
+
+    /**
+     * Records a new entry and maybe follows it with a link.
+     */
+    private void added(Path dir, Path entry) throws IOException {
+        created.add(entry);
+        if ((linkDensity > 0.0) && (random.nextDouble() < linkDensity)) {
+            Path target = created.get(random.nextInt(created.size()));
+            Files.createSymbolicLink(dir.resolve("link" + linkCount), target.toAbsolutePath());
+            linkCount++;
+        }
+    }
+
+    /**
+     * Deletes a tree, without following links.
+     */
+    static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    long directories() {
+        return dirCount;
+    }
+
+    long files() {
+        return fileCount;
+    }
+
+    long links() {
+        return linkCount;
+    }
+
+    @Override
+    public String toString() {
+        return "Generated Tree:  " + dirCount + " directories, " + fileCount + " files, " + linkCount + " links";
+    }
+}
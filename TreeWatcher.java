@@ -0,0 +1,364 @@
+/**
+ *  TreeWatcher: A java class to follow the changes to a file tree after walking it.
+ *
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks a tree once and then follows its changes, so a consumer can keep a
+ * live view of a large tree without walking it again.  The first walk is
+ * made against a snapshot, an empty one reporting every entry as added, and
+ * every directory in the snapshot is then registered with a
+ * {@code WatchService}.  From then on only the entries named by the events
+ * of the watch service are stat'ed, and reported to the sink of the walker
+ * as added, removed or changed; a new directory is walked in full.  A new
+ * directory can only be registered once it has been walked, so it is then
+ * compared with the snapshot again, which reports what was made in it
+ * before its watch began.  When the watch service overflows and loses
+ * events, the directory they were for is compared with the snapshot in
+ * full.
+ *
+ * The number of directories registered is capped, and the shallowest are
+ * registered first.  The directories over the cap, or refused by the
+ * operating system, are polled instead: every poll interval they are
+ * stat'ed, and one whose modification time has changed is compared with
+ * the snapshot.  Like a walk against a snapshot, polling does not see a
+ * file rewritten in place.
+ *
+ * The walker must have no attribute cache and must not follow links.  The
+ * sink of the walker is flushed after each batch of changes, and only
+ * finished when the watcher is closed; with no sink the events are printed.
+ */
+class TreeWatcher implements Closeable {
+    static final int DEFAULT_MAX_WATCHES = 8192;
+    private static final long DEFAULT_POLL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private final FileTreeWalker walker;
+    private final Snapshot snapshot;
+    private final int maxWatches;
+    private final Map<Path, WatchKey> keys = new HashMap<Path, WatchKey>();
+    private final Set<Path> unwatched = new LinkedHashSet<Path>();
+    private EventSink consumer = null;
+    private WatchService service = null;
+    private PrintStream messages = System.out;
+    private long pollNanos = DEFAULT_POLL_NANOS;
+    private volatile boolean closed = false;
+    private boolean refused = false;
+    // The number of names in the path of the start of the walk.
+    private int rootNames = 0;
+
+    /**
+     * Watches with the given walker, keeping the snapshot up to date and
+     * registering at most {@code maxWatches} directories.
+     */
+    TreeWatcher(FileTreeWalker walker, Snapshot snapshot, int maxWatches) {
+        if (maxWatches < 0) {
+            throw new IllegalArgumentException("The maximum watches cannot be negative:  " + maxWatches);
+        }
+        if (walker.attributeCache() != null) {
+            throw new IllegalArgumentException("A watched walk cannot use an attribute cache.");
+        }
+        this.walker = walker;
+        this.snapshot = snapshot;
+        this.maxWatches = maxWatches;
+    }
+
+    /**
+     * Sets where the messages about the watch are printed,
+     * {@code System.out} by default.
+     */
+    void setMessages(PrintStream messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Sets how often the directories which are not watched are polled.
+     */
+    void setPollInterval(long time, TimeUnit unit) {
+        this.pollNanos = unit.toNanos(time);
+    }
+
+    /**
+     * The number of directories registered with the watch service.
+     */
+    synchronized int watched() {
+        return keys.size();
+    }
+
+    /**
+     * The number of directories polled instead of watched.
+     */
+    synchronized int polled() {
+        return unwatched.size();
+    }
+
+    /**
+     * Passes the events on to the consumer, forgetting the watches of the
+     * directories removed.  The walks made by the watcher do not finish
+     * the consumer.
+     */
+    private class WatchSink implements EventSink {
+        @Override
+        public FileVisitResult accept(FileTreeWalker.Event ev) {
+            if ((ev.type() == FileTreeWalker.EventType.REMOVED)
+                || ((ev.type() == FileTreeWalker.EventType.CHANGED) && !ev.attributes().isDirectory())) {
+                forget(ev.file());
+            }
+            return consumer.accept(ev);
+        }
+
+        @Override
+        public void flush() {
+            consumer.flush();
+        }
+
+        @Override
+        public void finish() {
+            consumer.flush();
+        }
+    }
+
+    /**
+     * Walks the tree from the given directory and then follows its changes
+     * until the watcher is closed or the thread interrupted.
+     */
+    void watch(Path root) throws IOException, InterruptedException {
+        FileSystem fileSystem = root.getFileSystem();
+        // Without a sink of the caller's the events are printed, as by a walk.
+        EventSink given = walker.sink();
+        consumer = (given != null) ? given : new TextSink(System.out);
+        walker.setSink(new WatchSink());
+        walker.setSnapshot(snapshot);
+        service = fileSystem.newWatchService();
+        rootNames = root.getNameCount();
+        try {
+            walker.walk(root);
+            List<Path> directories = new ArrayList<Path>();
+            for (String path : snapshot.paths()) {
+                directories.add(fileSystem.getPath(path));
+            }
+            register(directories);
+            messages.println("Watching " + watched() + " directories, polling " + polled() + ".");
+            long nextPoll = System.nanoTime() + pollNanos;
+            while (!closed && (watched() + polled() > 0)) {
+                long wait = Math.max(0, nextPoll - System.nanoTime());
+                WatchKey key = service.poll(TimeUnit.NANOSECONDS.toMillis(wait) + 1, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Map<Path, Set<Path>> changes = new LinkedHashMap<Path, Set<Path>>();
+                    // Take every key ready, so a burst of events is handled in one batch.
+                    while (key != null) {
+                        collect(key, changes);
+                        key = service.poll();
+                    }
+                    for (Map.Entry<Path, Set<Path>> change : changes.entrySet()) {
+                        follow(walker.update(change.getKey(), depth(change.getKey()), change.getValue()));
+                    }
+                }
+                if (System.nanoTime() - nextPoll >= 0) {
+                    poll();
+                    nextPoll = System.nanoTime() + pollNanos;
+                }
+                consumer.flush();
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            // Closed while waiting.
+        } finally {
+            walker.setSink(given);
+            closeService();
+            consumer.finish();
+        }
+    }
+
+    /**
+     * Adds the entries named by the events of a key to the changes of its
+     * directory, {@code null} when events were lost and the whole directory
+     * must be compared.
+     */
+    private void collect(WatchKey key, Map<Path, Set<Path>> changes) {
+        Path dir = (Path)key.watchable();
+        boolean current;
+        synchronized (this) {
+            current = (keys.get(dir) == key);
+        }
+        List<WatchEvent<?>> events = key.pollEvents();
+        if (!key.reset()) {
+            // The directory is gone, the event of its parent reports it.
+            forget(dir);
+        }
+        if (!current || events.isEmpty()) {
+            // Forgotten since, a directory of the same name may be watched under a new key.
+            return;
+        }
+        boolean rescan = changes.containsKey(dir) && (changes.get(dir) == null);
+        Set<Path> entries = changes.get(dir);
+        for (WatchEvent<?> event : events) {
+            if (rescan) {
+                break;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                messages.println("Events lost, comparing " + dir.toString() + " again.");
+                rescan = true;
+                continue;
+            }
+            if (entries == null) {
+                entries = new LinkedHashSet<Path>();
+            }
+            entries.add(dir.resolve((Path)event.context()));
+        }
+        changes.put(dir, rescan ? null : entries);
+    }
+
+    /**
+     * Registers the directories, the shallowest first, polling those over
+     * the cap.
+     */
+    private void register(Collection<Path> directories) {
+        List<Path> sorted = new ArrayList<Path>(directories);
+        Collections.sort(sorted, new Comparator<Path>() {
+            @Override
+            public int compare(Path one, Path two) {
+                int byDepth = Integer.compare(one.getNameCount(), two.getNameCount());
+                return (byDepth != 0) ? byDepth : one.compareTo(two);
+            }
+        });
+        for (Path dir : sorted) {
+            synchronized (this) {
+                if (keys.containsKey(dir)) {
+                    continue;
+                }
+                if (keys.size() >= maxWatches) {
+                    unwatched.add(dir);
+                    continue;
+                }
+            }
+            try {
+                WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                synchronized (this) {
+                    keys.put(dir, key);
+                    unwatched.remove(dir);
+                }
+            } catch (IOException ioe) {
+                // Most often the limit of the operating system on watches.
+                if (!refused) {
+                    refused = true;
+                    messages.println("Directory " + dir.toString() + " cannot be watched, polling:  " + ioe.toString());
+                }
+                synchronized (this) {
+                    unwatched.add(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the watch of a directory no longer in the tree.
+     */
+    private synchronized void forget(Path dir) {
+        WatchKey key = keys.remove(dir);
+        if (key != null) {
+            key.cancel();
+        }
+        unwatched.remove(dir);
+    }
+
+    /**
+     * Compares the directories polled whose modification time has changed
+     * with the snapshot.
+     */
+    private void poll() {
+        List<Path> polled;
+        synchronized (this) {
+            polled = new ArrayList<Path>(unwatched);
+        }
+        List<Path> added = new ArrayList<Path>();
+        for (Path dir : polled) {
+            Snapshot.Directory known = snapshot.get(dir);
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ioe) {
+                attrs = null;
+            }
+            if ((known == null) || (attrs == null)) {
+                // Gone, which the event or poll of its parent reports.
+                forget(dir);
+            } else if (!known.unchanged(attrs)) {
+                added.addAll(walker.update(dir, depth(dir), null));
+            }
+        }
+        follow(added);
+    }
+
+    /**
+     * The depth of a directory in the walk.
+     */
+    private int depth(Path dir) {
+        return dir.getNameCount() - rootNames;
+    }
+
+    /**
+     * Registers the directories just added to the snapshot, and then
+     * compares them with it again, as entries made in them after they were
+     * walked and before they were registered have no events.  The
+     * directories found by the comparison are followed in turn.
+     */
+    private void follow(List<Path> added) {
+        while (!closed && !added.isEmpty()) {
+            register(added);
+            List<Path> missed = new ArrayList<Path>();
+            for (Path dir : added) {
+                synchronized (this) {
+                    if (!keys.containsKey(dir)) {
+                        // Polled instead, which finds the changes in time.
+                        continue;
+                    }
+                }
+                missed.addAll(walker.update(dir, depth(dir), null));
+            }
+            added = missed;
+        }
+    }
+
+    private void closeService() {
+        try {
+            service.close();
+        } catch (IOException ignore) { }
+    }
+
+    /**
+     * Stops the watch, from any thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (service != null) {
+            closeService();
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/**
+ *  WalkBenchmark: A java class to measure the cost of walking a file tree.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Measures the cost per entry of the parts of a walk.  Each benchmark is run
+ * until warm and then timed, and where the JVM can count the bytes a thread
+ * allocates the allocation per entry is reported as well.
+ *
+ * The benchmarks are:
+ * 1. depth: working out whether to descend into an entry from its path, as
+ *    the walker used to, against carrying the depth on the directory.  Both
+ *    make a node for each directory entered and compare its depth with the
+ *    maximum, as the walker does, so only the way the depth is found differs.
+ * 2. walk: whole walks of a tree with the output discarded, on one thread,
+ *    on several threads, through the lazy stream, following links and with
+ *    a warm attribute cache.  The tree is made by {@code TreeGenerator} in a
+ *    temporary directory, and deleted afterwards, unless one is given.
+ *    Allocation is only counted for the walks on the calling thread.
+ *
+ *    java WalkBenchmark [--iterations n] [--tree directory] [--threads n]
+ *        [--depth n] [--fanout n] [--files n] [--links fraction] [--seed n]
+ *
+ * The same benchmarks run under JMH from {@code bench.WalkJmh}, built with
+ * the pom; this class runs them where JMH is not at hand.
+ */
+public class WalkBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    // Small pieces of work are repeated to handle this many entries a round.
+    private static final long ROUND_ENTRIES = 1000000;
+    private static final long WALK_ROUND_ENTRIES = 100000;
+    private static final String USAGE = "\n\n\tUsage:\n\tjava WalkBenchmark [--iterations n] [--tree directory] [--threads n]"
+        + "\n\t\t[--depth n] [--fanout n] [--files n] [--links fraction] [--seed n]\n\n";
+    private static final PrintStream QUIET = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    /**
+     * A piece of work measured per entry.
+     */
+    interface Work {
+        /**
+         * Does the work once for each of the entries, returning a value
+         * depending on it so it cannot be optimised away.
+         */
+        long run();
+
+        /**
+         * The number of entries handled by one run.
+         */
+        long entries();
+    }
+
+    private static final String DEPTH_ROOT = "/benchmark/root";
+    private static long sink = 0;
+    // Not final, so the comparison with it is not folded away.
+    private static int maxDepth = Integer.MAX_VALUE;
+
+    /**
+     * The part of the walker's {@code DirectoryNode} the depth benchmarks
+     * need: a directory entered and its depth below the start of the walk.
+     */
+    private static final class Node {
+        final Path dir;
+        final int depth;
+
+        Node(Path dir, int depth) {
+            this.dir = dir;
+            this.depth = depth;
+        }
+    }
+
+    public static void main(String args[]) throws IOException {
+        int iterations = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int depth = 5;
+        int fanout = 4;
+        int files = 10;
+        double links = 0.05;
+        long seed = 1;
+        String treeName = null;
+        try {
+            for (int x = 0; x < args.length; x++) {
+                if (x + 1 >= args.length) {
+                    System.out.println(USAGE);
+                    return;
+                } else if (args[x].compareTo("--iterations") == 0) {
+                    iterations = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--tree") == 0) {
+                    treeName = args[++x];
+                } else if (args[x].compareTo("--threads") == 0) {
+                    threads = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--depth") == 0) {
+                    depth = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--fanout") == 0) {
+                    fanout = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--files") == 0) {
+                    files = Integer.parseInt(args[++x]);
+                } else if (args[x].compareTo("--links") == 0) {
+                    links = Double.parseDouble(args[++x]);
+                } else if (args[x].compareTo("--seed") == 0) {
+                    seed = Long.parseLong(args[++x]);
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println(USAGE);
+            return;
+        }
+        Path tree = null;
+        if (treeName != null) {
+            tree = FileSystems.getDefault().getPath(treeName);
+        } else {
+            tree = generateTree(depth, fanout, files, links, seed);
+        }
+        try {
+            for (int x = 0; x < iterations; x++) {
+                depthBenchmarks();
+                walkBenchmarks(tree, threads);
+            }
+        } finally {
+            if (treeName == null) {
+                TreeGenerator.delete(tree);
+            }
+        }
+        // Keep the results alive.
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Compare the depth of entries worked out from their paths with the
+     * depth carried on the directory, for a deep and a wide tree.
+     */
+    static void depthBenchmarks() {
+        Path root = FileSystems.getDefault().getPath(DEPTH_ROOT);
+        Path[] deep = deepEntries(root);
+        Path[] wide = wideEntries(root);
+        report("depth, deep tree, from the path", pathDepth(root, deep, true));
+        report("depth, deep tree, on the directory", nodeDepth(root, deep, true));
+        report("depth, wide tree, from the path", pathDepth(root, wide, false));
+        report("depth, wide tree, on the directory", nodeDepth(root, wide, false));
+    }
+
+    /**
+     * One directory per level, 64 levels deep.
+     */
+    private static Path[] deepEntries(Path root) {
+        Path[] deep = new Path[64];
+        Path dir = root;
+        for (int x = 0; x < deep.length; x++) {
+            dir = dir.resolve("level" + x);
+            deep[x] = dir;
+        }
+        return deep;
+    }
+
+    /**
+     * 10000 entries in a single directory.
+     */
+    private static Path[] wideEntries(Path root) {
+        Path[] wide = new Path[10000];
+        for (int x = 0; x < wide.length; x++) {
+            wide[x] = root.resolve("entry" + x);
+        }
+        return wide;
+    }
+
+    /**
+     * Time whole walks of the tree with the events discarded.
+     */
+    static void walkBenchmarks(Path tree, int threads) {
+        report("walk, single thread", walk(tree, new FileTreeWalker(Integer.MAX_VALUE, false, false, false)),
+            WALK_ROUND_ENTRIES, true);
+        FileTreeWalker parallel = new FileTreeWalker(Integer.MAX_VALUE, false, false, false);
+        parallel.setParallelism(threads);
+        report("walk, parallel, threads " + threads, walk(tree, parallel), WALK_ROUND_ENTRIES, false);
+        report("walk, lazy stream", stream(tree, new FileTreeWalker(Integer.MAX_VALUE, false, false, false)),
+            WALK_ROUND_ENTRIES, true);
+        report("walk, following links", walk(tree, new FileTreeWalker(Integer.MAX_VALUE, true, false, false)),
+            WALK_ROUND_ENTRIES, true);
+        report("walk, warm attribute cache", walk(tree, new FileTreeWalker(Integer.MAX_VALUE, false, false, true)),
+            WALK_ROUND_ENTRIES, true);
+    }
+
+    /**
+     * The work of one benchmark for {@code bench.WalkJmh}, which runs them
+     * under JMH.  JMH does not run benchmarks of the default package, and a
+     * class in a package cannot name the classes of the default package, so
+     * it finds this method by reflection and calls the work through the
+     * supplier.  The depth benchmarks are deeppath, deepnode, widepath and
+     * widenode, and the walks of the tree walk, parallel, stream, links and
+     * cache.  Each run handles the 64 or 10000 entries of a depth benchmark,
+     * or walks the whole tree.
+     */
+    public static LongSupplier work(String name, Path tree, int threads) {
+        Path root = FileSystems.getDefault().getPath(DEPTH_ROOT);
+        final Work work;
+        if (name.compareTo("deeppath") == 0) {
+            work = pathDepth(root, deepEntries(root), true);
+        } else if (name.compareTo("deepnode") == 0) {
+            work = nodeDepth(root, deepEntries(root), true);
+        } else if (name.compareTo("widepath") == 0) {
+            work = pathDepth(root, wideEntries(root), false);
+        } else if (name.compareTo("widenode") == 0) {
+            work = nodeDepth(root, wideEntries(root), false);
+        } else if (name.compareTo("walk") == 0) {
+            work = walk(tree, new FileTreeWalker(Integer.MAX_VALUE, false, false, false));
+        } else if (name.compareTo("parallel") == 0) {
+            FileTreeWalker parallel = new FileTreeWalker(Integer.MAX_VALUE, false, false, false);
+            parallel.setParallelism(threads);
+            work = walk(tree, parallel);
+        } else if (name.compareTo("stream") == 0) {
+            work = stream(tree, new FileTreeWalker(Integer.MAX_VALUE, false, false, false));
+        } else if (name.compareTo("links") == 0) {
+            work = walk(tree, new FileTreeWalker(Integer.MAX_VALUE, true, false, false));
+        } else if (name.compareTo("cache") == 0) {
+            work = walk(tree, new FileTreeWalker(Integer.MAX_VALUE, false, false, true));
+        } else {
+            throw new IllegalArgumentException("There is no benchmark named:  " + name);
+        }
+        return new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return work.run();
+            }
+        };
+    }
+
+    /**
+     * Makes a tree in a temporary directory for {@code bench.WalkJmh}.
+     */
+    public static Path generateTree(int depth, int fanout, int files, double links, long seed) throws IOException {
+        TreeGenerator generator = new TreeGenerator(depth, fanout, files, links, seed);
+        Path tree = generator.generate(Files.createTempDirectory("walkbenchmark"));
+        System.out.println(generator.toString());
+        return tree;
+    }
+
+    /**
+     * Deletes a tree made by {@code generateTree}.
+     */
+    public static void deleteTree(Path tree) throws IOException {
+        TreeGenerator.delete(tree);
+    }
+
+    /**
+     * A walk of the tree into a {@code NullSink}.
+     */
+    private static Work walk(final Path tree, final FileTreeWalker walker) {
+        final NullSink sink = new NullSink();
+        walker.setSink(sink);
+        walker.setMessages(QUIET);
+        walker.walk(tree);
+        final long entries = sink.count();
+        return new Work() {
+            @Override
+            public long run() {
+                long before = sink.count();
+                walker.walk(tree);
+                return sink.count() - before;
+            }
+
+            @Override
+            public long entries() {
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * A walk of the tree through the lazy stream.
+     */
+    private static Work stream(final Path tree, final FileTreeWalker walker) {
+        walker.setMessages(QUIET);
+        final long entries;
+        try (Stream<FileTreeWalker.Event> events = walker.stream(tree)) {
+            entries = events.count();
+        }
+        return new Work() {
+            @Override
+            public long run() {
+                try (Stream<FileTreeWalker.Event> events = walker.stream(tree)) {
+                    return events.count();
+                }
+            }
+
+            @Override
+            public long entries() {
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * The depth as the walker used to find it, by splitting the path of each
+     * entry.  The entries are nested, each in the one before, or all in the
+     * start of the walk.
+     */
+    private static Work pathDepth(final Path root, final Path[] entries, final boolean nested) {
+        return new Work() {
+            @Override
+            public long run() {
+                long total = 0;
+                Node parent = new Node(root, 0);
+                for (Path entry : entries) {
+                    int depth = stringDepth(root, entry);
+                    if (depth < maxDepth) {
+                        Node node = new Node(entry, depth);
+                        total += node.depth;
+                        if (nested) {
+                            parent = node;
+                        }
+                    }
+                }
+                return total + parent.depth;
+            }
+
+            @Override
+            public long entries() {
+                return entries.length;
+            }
+        };
+    }
+
+    /**
+     * The depth carried on each directory, one more than its parent's, as
+     * the walker finds it now.
+     */
+    private static Work nodeDepth(final Path root, final Path[] entries, final boolean nested) {
+        return new Work() {
+            @Override
+            public long run() {
+                long total = 0;
+                Node parent = new Node(root, 0);
+                for (Path entry : entries) {
+                    int depth = parent.depth + 1;
+                    if (depth < maxDepth) {
+                        Node node = new Node(entry, depth);
+                        total += node.depth;
+                        if (nested) {
+                            parent = node;
+                        }
+                    }
+                }
+                return total + parent.depth;
+            }
+
+            @Override
+            public long entries() {
+                return entries.length;
+            }
+        };
+    }
+
+    /**
+     * The old FileTreeWalker.getDepth().
+     */
+    static int stringDepth(Path begin, Path entry) {
+       Character seper = File.separatorChar;
+       String sep = "";
+       if (seper == '\\') {
+         sep = "\\\\";
+       } else {
+         sep = seper.toString();
+       }
+       String entryVal = entry.toString();
+       String beginVal = begin.toString();
+       String tmpVal = "";
+       int retVal = 0;
+       int length = beginVal.length();
+       String finalChar = beginVal.substring(length - 1, length);
+       if (finalChar.compareTo(sep) != 0)
+       {
+         length++;
+       }
+       int size = entryVal.length();
+       if ( size < length){
+           return 0;
+       }
+       tmpVal = entryVal.substring(length, size);
+       CharSequence test = sep.subSequence(0, 1);
+       if (tmpVal.contains(test)) {
+         String tmpArray[] = tmpVal.split(sep);
+         retVal = tmpArray.length;
+       }
+       return(retVal);
+    }
+
+    /**
+     * Runs the work until warm, then prints the time and allocation per
+     * entry of the measured rounds.
+     */
+    static void report(String name, Work work) {
+        report(name, work, ROUND_ENTRIES, true);
+    }
+
+    /**
+     * Runs the work until warm, then prints the time per entry of the
+     * measured rounds, each handling about {@code roundEntries} entries, and
+     * the allocation per entry of the calling thread when it is counted.
+     */
+    static void report(String name, Work work, long roundEntries, boolean countAllocation) {
+        long repeats = Math.max(1, roundEntries / Math.max(1, work.entries()));
+        for (int x = 0; x < WARMUP_ROUNDS * repeats; x++) {
+            sink += work.run();
+        }
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int x = 0; x < MEASURED_ROUNDS * repeats; x++) {
+            sink += work.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+        double entries = (double)work.entries() * MEASURED_ROUNDS * repeats;
+        String line = String.format("%-45s %12.1f ns/entry %14.0f entries/sec", name,
+            elapsed / entries, entries * 1e9 / elapsed);
+        if (countAllocation && (bytes >= 0)) {
+            line += String.format(" %10.1f bytes/entry", allocated / entries);
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * The bytes allocated so far by this thread, or -1 when the JVM cannot
+     * tell.
+     */
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
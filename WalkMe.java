@@ -10,8 +10,19 @@ import java.nio.file.Files;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.ArrayDeque;
 import java.nio.file.LinkOption;
 
@@ -28,15 +39,60 @@ import java.nio.file.LinkOption;
  * 4. Using a file attribute cache to speed analysis.
  */  
 public class WalkMe {
+    private static final String USAGE = "\n\n\tUsage:\n\tjava -jar TreeWalker.jar directory [--maxdepth n] [--followlinks] [--ignoresecurityexception] [--useattributecache]"
+        + "\n\t\t[--threads n] [--virtualthreads n] [--ordered] [--maxopenstreams n]"
+        + "\n\t\t[--attributecachesize n] [--nooutput] [--bufferedoutput]"
+        + "\n\t\t[--output file] [--pathsonly] [--print0] [--snapshot file] [--index file]"
+        + "\n\t\t[--exclude pattern]... [--include pattern]... [--namesonly]"
+        + "\n\t\t[--metrics] [--progress seconds] [--checkpoint file] [--resume]"
+        + "\n\t\t[--du] [--top n] [--totalsdepth n]"
+        + "\n\t\t[--order stack|depth|breadth|sorted] [--queuelimit n]"
+        + "\n\t\t[--manifest file] [--hashthreads n] [--reusehashes]"
+        + "\n\t\t[--duplicates] [--minsize n] [--watch] [--maxwatches n]"
+        + "\n\t\t[--model] [--glob pattern] [--archives] [--maxarchives n]";
+
     public static void main (String args[]) {
         boolean followLinks = false;
         boolean ignoreSecurityException = false;
         boolean useAttributeCache = false;
+        boolean ordered = false;
+        boolean noOutput = false;
+        boolean bufferedOutput = false;
+        boolean pathsOnly = false;
+        boolean print0 = false;
+        boolean namesOnly = false;
+        boolean useMetrics = false;
+        int progress = 0;
+        String checkpointName = null;
+        boolean resume = false;
+        boolean diskUsage = false;
+        int topCount = 10;
+        String manifestName = null;
+        int hashThreads = Runtime.getRuntime().availableProcessors();
+        boolean reuseHashes = false;
+        boolean duplicates = false;
+        long minSize = 1;
+        boolean watch = false;
+        boolean useModel = false;
+        String glob = null;
+        int maxWatches = TreeWatcher.DEFAULT_MAX_WATCHES;
+        int maxArchives = 0;
+        FileTreeWalker.Traversal traversal = FileTreeWalker.Traversal.STACK;
+        int queueLimit = FileTreeWalker.DEFAULT_QUEUE_LIMIT;
+        int totalsDepth = 1;
+        String outputName = null;
+        String snapshotName = null;
+        String indexName = null;
+        PathFilter filter = null;
         int maxDepth = Integer.MAX_VALUE;
+        int threads = 1;
+        int fanOut = 0;
+        int maxOpenStreams = 0;
+        int attributeCacheSize = AttributeCache.DEFAULT_MAX_ENTRIES;
         String dirName = "";
         if (args.length > 0){
              if ((args.length == 1) && ((args[0].compareTo("--help") == 0) || (args[0].compareTo("--usage") == 0))){
-                  System.out.println("\n\n\tUsage:\n\tjava -jar TreeWalker.jar directory [--maxdepth n] [--followlinks] [--ignoresecurityexception] [--useattributecache] \n\n");
+                  System.out.println(USAGE + "\n\n");
                   return;
             }               
              dirName = args[0];
@@ -50,6 +106,272 @@ public class WalkMe {
                         ignoreSecurityException = true;
                      } else if (args[x].compareTo("--useattributecache") == 0){
                         useAttributeCache = true;
+                     } else if (args[x].compareTo("--ordered") == 0){
+                        ordered = true;
+                     } else if (args[x].compareTo("--nooutput") == 0){
+                        noOutput = true;
+                     } else if (args[x].compareTo("--bufferedoutput") == 0){
+                        bufferedOutput = true;
+                     } else if (args[x].compareTo("--pathsonly") == 0){
+                        pathsOnly = true;
+                     } else if (args[x].compareTo("--namesonly") == 0){
+                        namesOnly = true;
+                     } else if (args[x].compareTo("--du") == 0){
+                        diskUsage = true;
+                     } else if ((args[x].compareTo("--top") == 0) || (args[x].compareTo("--totalsdepth") == 0)) {
+                        String option = args[x];
+                        int value = -1;
+                        x += 1;
+                        try{
+                           value = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           value = -1;
+                        }
+                        if (value < 0) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used " + option + " without a positive integer value.\n\n");
+                           return;
+                        }
+                        if (option.compareTo("--top") == 0) {
+                           topCount = value;
+                        } else {
+                           totalsDepth = value;
+                        }
+                        diskUsage = true;
+                     } else if (args[x].compareTo("--order") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           traversal = null;
+                        } else if (args[x].compareTo("stack") == 0) {
+                           traversal = FileTreeWalker.Traversal.STACK;
+                        } else if (args[x].compareTo("depth") == 0) {
+                           traversal = FileTreeWalker.Traversal.DEPTH_FIRST;
+                        } else if (args[x].compareTo("breadth") == 0) {
+                           traversal = FileTreeWalker.Traversal.BREADTH_FIRST;
+                        } else if (args[x].compareTo("sorted") == 0) {
+                           traversal = FileTreeWalker.Traversal.SORTED;
+                        } else {
+                           traversal = null;
+                        }
+                        if (traversal == null) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --order without stack, depth, breadth or sorted.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--queuelimit") == 0) {
+                        x += 1;
+                        try{
+                           queueLimit = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           queueLimit = 0;
+                        }
+                        if (queueLimit < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --queuelimit without a positive integer value.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--manifest") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --manifest without a file name.\n\n");
+                           return;
+                        }
+                        manifestName = args[x];
+                     } else if (args[x].compareTo("--hashthreads") == 0) {
+                        x += 1;
+                        try{
+                           hashThreads = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           hashThreads = 0;
+                        }
+                        if (hashThreads < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --hashthreads without a positive integer value.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--duplicates") == 0){
+                        duplicates = true;
+                     } else if (args[x].compareTo("--minsize") == 0) {
+                        x += 1;
+                        try{
+                           minSize = Long.parseLong(args[x]);
+                        }  catch (Exception exc) {
+                           minSize = 0;
+                        }
+                        if (minSize < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --minsize without a positive integer value.\n\n");
+                           return;
+                        }
+                        duplicates = true;
+                     } else if (args[x].compareTo("--model") == 0){
+                        useModel = true;
+                     } else if (args[x].compareTo("--glob") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --glob without a pattern.\n\n");
+                           return;
+                        }
+                        glob = args[x];
+                        useModel = true;
+                     } else if (args[x].compareTo("--archives") == 0){
+                        if (maxArchives == 0) {
+                           maxArchives = ArchiveFileSystems.DEFAULT_MAX_OPEN;
+                        }
+                     } else if (args[x].compareTo("--maxarchives") == 0) {
+                        x += 1;
+                        try{
+                           maxArchives = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           maxArchives = -1;
+                        }
+                        if (maxArchives < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --maxarchives without a positive integer value.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--watch") == 0){
+                        watch = true;
+                     } else if (args[x].compareTo("--maxwatches") == 0) {
+                        x += 1;
+                        try{
+                           maxWatches = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           maxWatches = -1;
+                        }
+                        if (maxWatches < 0) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --maxwatches without a positive integer value.\n\n");
+                           return;
+                        }
+                        watch = true;
+                     } else if (args[x].compareTo("--reusehashes") == 0){
+                        reuseHashes = true;
+                     } else if (args[x].compareTo("--resume") == 0){
+                        resume = true;
+                     } else if (args[x].compareTo("--checkpoint") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --checkpoint without a file name.\n\n");
+                           return;
+                        }
+                        checkpointName = args[x];
+                     } else if (args[x].compareTo("--metrics") == 0){
+                        useMetrics = true;
+                     } else if (args[x].compareTo("--progress") == 0) {
+                        x += 1;
+                        try{
+                           progress = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           progress = 0;
+                        }
+                        if (progress < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --progress without a positive integer value.\n\n");
+                           return;
+                        }
+                        useMetrics = true;
+                     } else if (args[x].compareTo("--print0") == 0){
+                        pathsOnly = true;
+                        print0 = true;
+                     } else if (args[x].compareTo("--output") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --output without a file name.\n\n");
+                           return;
+                        }
+                        outputName = args[x];
+                     } else if (args[x].compareTo("--snapshot") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --snapshot without a file name.\n\n");
+                           return;
+                        }
+                        snapshotName = args[x];
+                     } else if (args[x].compareTo("--index") == 0){
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --index without a file name.\n\n");
+                           return;
+                        }
+                        indexName = args[x];
+                     } else if ((args[x].compareTo("--exclude") == 0) || (args[x].compareTo("--include") == 0)){
+                        String rule = args[x];
+                        x += 1;
+                        if (x >= args.length) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used " + rule + " without a pattern.\n\n");
+                           return;
+                        }
+                        if (filter == null) {
+                           filter = new PathFilter();
+                        }
+                        try {
+                           if (rule.compareTo("--exclude") == 0) {
+                              filter.exclude(args[x]);
+                           } else {
+                              filter.include(args[x]);
+                           }
+                        } catch (IllegalArgumentException iae) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used " + rule + " with an invalid pattern:  " + iae.getMessage() + "\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--threads") == 0) {
+                        x += 1;
+                        try{
+                           threads = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           threads = 0;
+                        }
+                        if (threads < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --threads without a positive integer value.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--virtualthreads") == 0) {
+                        x += 1;
+                        try{
+                           fanOut = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           fanOut = 0;
+                        }
+                        if (fanOut < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --virtualthreads without a positive integer value.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--maxopenstreams") == 0) {
+                        x += 1;
+                        try{
+                           maxOpenStreams = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           maxOpenStreams = 0;
+                        }
+                        if (maxOpenStreams < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --maxopenstreams without a positive integer value.\n\n");
+                           return;
+                        }
+                     } else if (args[x].compareTo("--attributecachesize") == 0) {
+                        x += 1;
+                        try{
+                           attributeCacheSize = Integer.parseInt(args[x]);
+                        }  catch (Exception exc) {
+                           attributeCacheSize = 0;
+                        }
+                        if (attributeCacheSize < 1) {
+                           System.out.println(USAGE);
+                           System.out.println("\tYou used --attributecachesize without a positive integer value.\n\n");
+                           return;
+                        }
+                        useAttributeCache = true;
                      } else if (args[x].compareTo("--maxdepth") == 0) {
                         if (args.length > x) {
                            Integer intConv = null;
@@ -57,42 +379,305 @@ public class WalkMe {
                            try{
                               intConv = new Integer(args[x]);
                            }  catch (Exception exc) {
-                              System.out.println("\n\n\tUsage:\n\tjava -jar TreeWalker.jar directory [--maxdepth n] [--followlinks] [--ignoresecurityexception] [--useattributecache]");
+                              System.out.println(USAGE);
                               System.out.println("\tYou used --maxdepth without an improper integer value.\n\n");
                            }
                            maxDepth = intConv;
                            System.out.println("Maximum Depth:  " + intConv.toString());
                         } else {
-                           System.out.println("\n\n\tUsage:\n\tjava -jar TreeWalker.jar directory [--maxdepth n] [--followlinks] [--ignoresecurityexception] [--useattributecache]");
+                           System.out.println(USAGE);
                            System.out.println("\tYou used --maxdepth without an integer value.\n\n");
                         }
                      } else {
-                        System.out.println("\n\n\tUsage:\n\tjava -jar TreeWalker.jar directory [--maxdepth n] [--followlinks] [--ignoresecurityexception] [--useattributecache] \n\n");
+                        System.out.println(USAGE + "\n\n");
                         return;
                      }
                 }
             }
+            if (diskUsage && followLinks) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --du with --followlinks, disk usage does not follow links.\n\n");
+                return;
+            }
+            if (diskUsage && (traversal == FileTreeWalker.Traversal.BREADTH_FIRST)) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --du with --order breadth, disk usage adds up each directory as its walk ends.\n\n");
+                return;
+            }
+            if (diskUsage && namesOnly) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --du with --namesonly, disk usage needs the file sizes.\n\n");
+                return;
+            }
+            if (duplicates && namesOnly) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --duplicates with --namesonly, finding duplicates needs the file sizes.\n\n");
+                return;
+            }
+            if ((useModel || (indexName != null)) && namesOnly) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --model or --index with --namesonly, they keep the sizes and times of the files.\n\n");
+                return;
+            }
+            // Each of these chooses where the entries go, only one can be used.
+            int outputs = 0;
+            for (boolean chosen : new boolean[] {diskUsage, useModel, duplicates, indexName != null, noOutput,
+                (outputName != null) || pathsOnly, bufferedOutput}) {
+                if (chosen) {
+                    outputs++;
+                }
+            }
+            if (outputs > 1) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used two options choosing where the entries go, give only one of --du, --model,"
+                    + " --duplicates, --index, --nooutput, --bufferedoutput and --output, --pathsonly or --print0.\n\n");
+                return;
+            }
+            if (watch && (followLinks || useAttributeCache || diskUsage || duplicates || useModel || (manifestName != null)
+                || (indexName != null) || (snapshotName != null) || (checkpointName != null))) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --watch with an option it cannot be used with:  --followlinks,"
+                    + " --useattributecache, --du, --duplicates, --model, --manifest, --index, --snapshot or --checkpoint.\n\n");
+                return;
+            }
+            if ((maxArchives > 0) && (watch || diskUsage || duplicates || useModel || (manifestName != null)
+                || (indexName != null) || (snapshotName != null) || (checkpointName != null) || (threads > 1)
+                || (fanOut > 0))) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --archives with an option it cannot be used with:  --watch, --du,"
+                    + " --duplicates, --model, --manifest, --index, --snapshot, --checkpoint, --threads or --virtualthreads.\n\n");
+                return;
+            }
+            if (reuseHashes && (manifestName == null)) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --reusehashes without --manifest.\n\n");
+                return;
+            }
+            if (resume && (checkpointName == null)) {
+                System.out.println(USAGE);
+                System.out.println("\tYou used --resume without --checkpoint.\n\n");
+                return;
+            }
+            WritableByteChannel channel = null;
+            ScheduledExecutorService progressTimer = null;
             try {
-                WalkMe theWalk = new WalkMe(dirName, maxDepth, followLinks, ignoreSecurityException, useAttributeCache);
+                FileSystem fSystem = FileSystems.getDefault();
+                FileTreeWalker walker = new FileTreeWalker(maxDepth, followLinks, ignoreSecurityException, useAttributeCache);
+                walker.setParallelism(threads);
+                walker.setFanOut(fanOut);
+                walker.setOrdered(ordered);
+                walker.setMaxOpenStreams(maxOpenStreams);
+                walker.setFilter(filter);
+                walker.setNamesOnly(namesOnly);
+                walker.setTraversal(traversal);
+                walker.setQueueLimit(queueLimit);
+                walker.setArchives(maxArchives);
+                if (useMetrics) {
+                    walker.setMetrics(new WalkMetrics());
+                    walker.metrics().register();
+                }
+                if (useAttributeCache) {
+                    walker.setAttributeCache(new AttributeCache(attributeCacheSize));
+                }
+                DiskUsage usage = null;
+                DuplicateFinder finder = null;
+                TreeModel model = null;
+                if (diskUsage) {
+                    usage = new DiskUsage(topCount, totalsDepth, blockSize(fSystem.getPath(dirName)));
+                    walker.setSink(usage);
+                    // The totals need the events in the order of the single threaded walk.
+                    walker.setOrdered(true);
+                } else if (useModel) {
+                    model = new TreeModel(fSystem);
+                    walker.setSink(model);
+                } else if (duplicates) {
+                    finder = new DuplicateFinder(minSize);
+                    walker.setSink(finder);
+                } else if (indexName != null) {
+                    walker.setSink(new IndexSink(fSystem.getPath(indexName)));
+                } else if (noOutput) {
+                    walker.setSink(new NullSink());
+                } else if ((outputName != null) || pathsOnly) {
+                    if ((outputName != null) && resume) {
+                        // A resumed walk adds to the output of the walk it carries on.
+                        channel = openResumed(fSystem.getPath(outputName), print0 ? (byte)'\0' : (byte)'\n');
+                    } else if (outputName != null) {
+                        channel = FileChannel.open(fSystem.getPath(outputName), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    } else {
+                        channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+                        // Keep the messages out of the list of paths.
+                        walker.setMessages(System.err);
+                    }
+                    walker.setSink(new ChannelSink(channel, pathsOnly, print0 ? '\0' : '\n'));
+                } else if (bufferedOutput) {
+                    walker.setSink(new TextSink(System.out));
+                }
+                HashSink hashes = null;
+                if (manifestName != null) {
+                    // The manifest is written beside its file, so the old one can be read first.
+                    Path manifestFile = fSystem.getPath(manifestName);
+                    hashes = new HashSink(manifestFile, hashThreads, reuseHashes ? Manifest.load(manifestFile) : null,
+                        walker.sink());
+                    walker.setSink(hashes);
+                }
+                if (checkpointName != null) {
+                    Path root = fSystem.getPath(dirName);
+                    Path checkpointFile = fSystem.getPath(checkpointName);
+                    if (resume && Files.exists(checkpointFile)) {
+                        walker.setCheckpoint(Checkpoint.resume(checkpointFile, root));
+                    } else {
+                        walker.setCheckpoint(Checkpoint.start(checkpointFile, root));
+                    }
+                }
+                if (progress > 0) {
+                    progressTimer = startProgress(walker.metrics(), progress);
+                }
+                Snapshot snapshot = null;
+                if (snapshotName != null) {
+                    snapshot = Snapshot.load(fSystem.getPath(snapshotName));
+                    walker.setSnapshot(snapshot);
+                }
+                if (watch) {
+                    // Runs until the program is stopped.
+                    TreeWatcher watcher = new TreeWatcher(walker, new Snapshot(), maxWatches);
+                    watcher.setMessages(System.err);
+                    watcher.watch(fSystem.getPath(dirName));
+                    return;
+                }
+                WalkMe theWalk = new WalkMe(dirName, walker);
+                if (usage != null) {
+                    usage.print(System.out);
+                }
+                if (hashes != null) {
+                    System.out.println(hashes.toString());
+                }
+                if (finder != null) {
+                    finder.print(System.out);
+                }
+                if (model != null) {
+                    model.print(System.out, 10);
+                    if (glob != null) {
+                        int[] matches = model.glob(glob);
+                        System.out.println("Matching " + glob + ":  " + matches.length + " entries");
+                        for (int entry : matches) {
+                            System.out.println(model.path(entry));
+                        }
+                    }
+                }
+                if (snapshot != null) {
+                    snapshot.save(fSystem.getPath(snapshotName));
+                }
             } catch (Exception exc) {
                 System.out.println("\n\n\tError:  " + exc.getCause() + "\n\n");
                 return;
+            } finally {
+                if (progressTimer != null) {
+                    progressTimer.shutdownNow();
+                }
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignore) { }
+                }
             }
            
         } else {
-            System.out.println("\n\n\tUsage:\n\tjava WalkMe directory [--followlinks] [--ignoresecurityexception] [--useattributecache] \n\n");
+            System.out.println(USAGE + "\n\n");
         }
         return;
     }
     
+    /**
+     * Opens the output of a walk being resumed to add to it, first cutting
+     * off the line the walk was writing when it died, so the lines added do
+     * not run on from half a line.
+     */
+    private static FileChannel openResumed(Path file, byte separator) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.READ);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long end = channel.size();
+        long keep = 0;
+        while ((end > 0) && (keep == 0)) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear().limit((int)(end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            for (int x = buffer.position() - 1; x >= 0; x--) {
+                if (buffer.get(x) == separator) {
+                    keep = start + x + 1;
+                    break;
+                }
+            }
+            end = start;
+        }
+        channel.truncate(keep);
+        channel.position(keep);
+        return channel;
+    }
+
+    /**
+     * The block size of the file system holding the file, or 4096 when it
+     * cannot be found.
+     */
+    private static long blockSize(Path file) {
+        try {
+            return Files.getFileStore(file).getBlockSize();
+        } catch (IOException ioe) {
+            return 4096;
+        } catch (UnsupportedOperationException uoe) {
+            return 4096;
+        }
+    }
+
+    /**
+     * Prints a progress line to standard error every so many seconds.
+     */
+    private static ScheduledExecutorService startProgress(final WalkMetrics metrics, int seconds) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "WalkMe progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.err.println(metrics.progress());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+        return timer;
+    }
+
     public WalkMe(String dirname, int maxDepth, boolean followLinks, boolean ignoreSecurityException, boolean useAttributeCache) throws Exception{
         /**
          * Create a FileTreeWalker to walk the file tree.
          */
+        this(dirname, new FileTreeWalker(maxDepth, followLinks, ignoreSecurityException, useAttributeCache));
+    }
+
+    /**
+     * Walk the file tree with an already configured FileTreeWalker.
+     */
+    WalkMe(String dirname, FileTreeWalker walker) throws Exception{
         FileSystem fSystem = FileSystems.getDefault();
         Path begin = fSystem.getPath(dirname);
-        FileTreeWalker walker = new FileTreeWalker(maxDepth, followLinks, ignoreSecurityException, useAttributeCache);
         walker.walk(begin);
+        if (walker.attributeCache() != null) {
+            System.err.println(walker.attributeCache().toString());
+        }
+        if (walker.metrics() != null) {
+            System.err.println(walker.metrics().toString());
+        }
+        if (walker.archives() != null) {
+            System.err.println(walker.archives().toString());
+        }
         return;
     }
 
@@ -0,0 +1,248 @@
+/**
+ *  WalkMetrics: A java class to measure where a file tree walk spends its time.
+ *
+ */
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a walk, given to the walker with
+ * {@code FileTreeWalker.setMetrics}.  Every counter may be updated by all
+ * the threads of a walk at once without contention.  A walker without
+ * metrics only tests a field for {@code null} where it would count, and
+ * does not time anything.
+ *
+ * The metrics are:
+ * 1. The directories opened and the entries visited.
+ * 2. The stat calls and their latency.
+ * 3. The time spent opening and reading each directory.
+ * 4. The errors, by the type of the exception.
+ * 5. The deepest directory, the largest stack of directories waiting and
+ *    the most directory streams open at once.
+ */
+public class WalkMetrics implements WalkMetricsMBean {
+    private static final AtomicLong REGISTERED = new AtomicLong();
+    private final LongAdder directoriesOpened = new LongAdder();
+    private final LongAdder entriesVisited = new LongAdder();
+    private final LatencyHistogram statLatency = new LatencyHistogram();
+    private final LatencyHistogram readdirLatency = new LatencyHistogram();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxStackSize = new LongAccumulator(Math::max, 0);
+    private final AtomicLong openStreams = new AtomicLong();
+    private final LongAccumulator openStreamsHighWaterMark = new LongAccumulator(Math::max, 0);
+    private final long started = System.nanoTime();
+
+    /**
+     * Publishes the metrics on the platform MBean server, returning the name
+     * they are published under.
+     */
+    ObjectName register() throws JMException {
+        long number = REGISTERED.incrementAndGet();
+        ObjectName name = new ObjectName("FileTreeWalker:type=WalkMetrics"
+            + ((number == 1) ? "" : ",id=" + number));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        return name;
+    }
+
+    void entry() {
+        entriesVisited.increment();
+    }
+
+    void stat(long nanos) {
+        statLatency.record(nanos);
+    }
+
+    void error(Throwable error) {
+        String type = (error == null) ? "Unknown" : error.getClass().getSimpleName();
+        LongAdder count = errors.get(type);
+        if (count == null) {
+            LongAdder added = new LongAdder();
+            count = errors.putIfAbsent(type, added);
+            if (count == null) {
+                count = added;
+            }
+        }
+        count.increment();
+    }
+
+    /**
+     * Records a directory being read at the given depth while the given
+     * number of directories wait to be read.
+     */
+    void directory(int depth, int stackSize) {
+        maxDepth.accumulate(depth);
+        maxStackSize.accumulate(stackSize);
+    }
+
+    /**
+     * Wraps a directory stream just opened, so the time spent reading it is
+     * recorded when it is closed.
+     */
+    DirectoryStream<Path> opened(DirectoryStream<Path> stream, long openNanos) {
+        directoriesOpened.increment();
+        openStreamsHighWaterMark.accumulate(openStreams.incrementAndGet());
+        return new TimedDirectoryStream(stream, openNanos);
+    }
+
+    /**
+     * A directory stream which adds up the time spent opening it and in its
+     * iterator, where the directory is read.
+     */
+    private class TimedDirectoryStream implements DirectoryStream<Path> {
+        private final DirectoryStream<Path> stream;
+        private long nanos;
+        private boolean closed = false;
+
+        TimedDirectoryStream(DirectoryStream<Path> stream, long openNanos) {
+            this.stream = stream;
+            this.nanos = openNanos;
+        }
+
+        @Override
+        public Iterator<Path> iterator() {
+            final Iterator<Path> iterator = stream.iterator();
+            return new Iterator<Path>() {
+                @Override
+                public boolean hasNext() {
+                    long start = System.nanoTime();
+                    try {
+                        return iterator.hasNext();
+                    } finally {
+                        nanos += System.nanoTime() - start;
+                    }
+                }
+
+                @Override
+                public Path next() {
+                    long start = System.nanoTime();
+                    try {
+                        return iterator.next();
+                    } finally {
+                        nanos += System.nanoTime() - start;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                openStreams.decrementAndGet();
+                readdirLatency.record(nanos);
+            }
+            stream.close();
+        }
+    }
+
+    @Override
+    public long getDirectoriesOpened() {
+        return directoriesOpened.sum();
+    }
+
+    @Override
+    public long getEntriesVisited() {
+        return entriesVisited.sum();
+    }
+
+    @Override
+    public long getStatCalls() {
+        return statLatency.count();
+    }
+
+    @Override
+    public double getStatMeanNanos() {
+        return statLatency.mean();
+    }
+
+    @Override
+    public long getStatP99Nanos() {
+        return statLatency.percentile(0.99);
+    }
+
+    @Override
+    public double getReaddirMeanNanos() {
+        return readdirLatency.mean();
+    }
+
+    @Override
+    public long getReaddirP99Nanos() {
+        return readdirLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0;
+        for (LongAdder errorCount : errors.values()) {
+            count += errorCount.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public String getErrors() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LongAdder> error : new TreeMap<String, LongAdder>(errors).entrySet()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(error.getKey()).append('=').append(error.getValue().sum());
+        }
+        return text.toString();
+    }
+
+    @Override
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    @Override
+    public long getMaxStackSize() {
+        return maxStackSize.get();
+    }
+
+    @Override
+    public long getOpenStreams() {
+        return openStreams.get();
+    }
+
+    @Override
+    public long getOpenStreamsHighWaterMark() {
+        return openStreamsHighWaterMark.get();
+    }
+
+    /**
+     * A single line on how far the walk has got.
+     */
+    String progress() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long entries = getEntriesVisited();
+        return String.format("Progress:  %.0fs, %d directories, %d entries, %.0f entries/sec, %d errors",
+            seconds, getDirectoriesOpened(), entries, (seconds > 0) ? entries / seconds : 0.0, getErrorCount());
+    }
+
+    @Override
+    public String toString() {
+        return "Walk Metrics:  " + getDirectoriesOpened() + " directories opened, "
+            + getEntriesVisited() + " entries visited"
+            + "\n\tstat:  " + statLatency.toString()
+            + "\n\treaddir:  " + readdirLatency.toString() + " per directory"
+            + "\n\terrors:  " + getErrorCount() + ((getErrorCount() == 0) ? "" : " (" + getErrors() + ")")
+            + "\n\tmaximum depth " + getMaxDepth() + ", maximum stack " + getMaxStackSize()
+            + ", most open streams " + getOpenStreamsHighWaterMark();
+    }
+}
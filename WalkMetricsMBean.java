@@ -0,0 +1,40 @@
+/**
+ *  WalkMetricsMBean: A java interface to publish the metrics of a file tree walk through JMX.
+ *
+ */
+
+
+/**
+ * The management interface of {@code WalkMetrics}.  Latencies are in
+ * nanoseconds.
+ */
+public interface WalkMetricsMBean {
+    long getDirectoriesOpened();
+
+    long getEntriesVisited();
+
+    long getStatCalls();
+
+    double getStatMeanNanos();
+
+    long getStatP99Nanos();
+
+    double getReaddirMeanNanos();
+
+    long getReaddirP99Nanos();
+
+    long getErrorCount();
+
+    /**
+     * The number of errors of each type, as {@code type=count} pairs.
+     */
+    String getErrors();
+
+    long getMaxDepth();
+
+    long getMaxStackSize();
+
+    long getOpenStreams();
+
+    long getOpenStreamsHighWaterMark();
+}
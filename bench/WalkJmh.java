@@ -0,0 +1,126 @@
+/**
+ *  WalkJmh: A java class to run the file tree walk benchmarks under JMH.
+ *
+ */
+
+
+package bench;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The benchmarks of {@code WalkBenchmark} run by JMH, which forks a fresh
+ * JVM for them, warms them up and gives the error of each result.  JMH does
+ * not run benchmarks of the default package, where the walker is, and this
+ * class cannot name the classes there, so the work of each benchmark is
+ * looked up once through {@code WalkBenchmark.work} by reflection and
+ * called through a {@code LongSupplier}.  A result is the time of one run:
+ * the 64 entries of the deep tree or the 10000 of the wide tree for the
+ * depth benchmarks, a whole walk of the tree for the others.
+ *
+ *    mvn package
+ *    java -jar target/benchmarks.jar [-p tree=directory] [-p threads=n]
+ *
+ * The tree is generated in a temporary directory with the options of
+ * {@code WalkBenchmark}, unless one is given, and deleted afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WalkJmh {
+
+    /**
+     * Working out the depth of directories from their paths, against
+     * carrying it on the directory.
+     */
+    @State(Scope.Benchmark)
+    public static class Depth {
+        @Param({"deeppath", "deepnode", "widepath", "widenode"})
+        public String benchmark;
+        LongSupplier work;
+
+        @Setup(Level.Trial)
+        public void setUp() throws ReflectiveOperationException {
+            work = work(benchmark, null, 0);
+        }
+    }
+
+    /**
+     * Whole walks of a tree with the events discarded.
+     */
+    @State(Scope.Benchmark)
+    public static class Walk {
+        @Param({"walk", "parallel", "stream", "links", "cache"})
+        public String benchmark;
+        // The tree to walk, or empty to generate one.
+        @Param({""})
+        public String tree;
+        @Param({"4"})
+        public int threads;
+        @Param({"5"})
+        public int depth;
+        @Param({"4"})
+        public int fanout;
+        @Param({"10"})
+        public int files;
+        @Param({"0.05"})
+        public double links;
+        Path root;
+        LongSupplier work;
+
+        @Setup(Level.Trial)
+        public void setUp() throws ReflectiveOperationException {
+            if (tree.isEmpty()) {
+                root = (Path)benchmarks().getMethod("generateTree", int.class, int.class, int.class, double.class,
+                    long.class).invoke(null, depth, fanout, files, links, 1L);
+            } else {
+                root = FileSystems.getDefault().getPath(tree);
+            }
+            work = work(benchmark, root, threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws ReflectiveOperationException {
+            if (tree.isEmpty()) {
+                benchmarks().getMethod("deleteTree", Path.class).invoke(null, root);
+            }
+        }
+    }
+
+    @Benchmark
+    public long depth(Depth state) {
+        return state.work.getAsLong();
+    }
+
+    @Benchmark
+    public long walk(Walk state) {
+        return state.work.getAsLong();
+    }
+
+    private static Class<?> benchmarks() throws ClassNotFoundException {
+        return Class.forName("WalkBenchmark");
+    }
+
+    private static LongSupplier work(String benchmark, Path tree, int threads) throws ReflectiveOperationException {
+        return (LongSupplier)benchmarks().getMethod("work", String.class, Path.class, int.class)
+            .invoke(null, benchmark, tree, threads);
+    }
+}